@@ -0,0 +1,100 @@
+// Representative 100-line block: used to train the class-data archive
+// (make cds) and by the startup benchmark (bench/startup.sh).
+loadI 26 => r0
+loadI 8 => r1
+loadI 1 => r2
+loadI 39 => r3
+loadI 24 => r4
+loadI 24 => r5
+loadI 20 => r6
+loadI 1084 => r8
+load r8 => r0
+sub r8, r1 => r2
+loadI 18 => r8
+loadI 1052 => r1
+store r2 => r1
+sub r8, r0 => r9
+add r5, r2 => r5
+mult r2, r6 => r10
+mult r9, r2 => r11
+nop
+add r11, r0 => r7
+loadI 1060 => r9
+store r5 => r9
+add r9, r5 => r1
+add r8, r11 => r7
+loadI 1080 => r9
+load r9 => r6
+sub r8, r1 => r6
+add r2, r2 => r8
+sub r6, r3 => r0
+add r8, r9 => r11
+sub r6, r11 => r10
+add r11, r6 => r11
+sub r5, r11 => r5
+sub r0, r7 => r6
+add r11, r11 => r10
+sub r10, r1 => r9
+sub r2, r1 => r1
+loadI 6 => r2
+sub r10, r9 => r2
+output 1064
+loadI 1100 => r7
+store r6 => r7
+loadI 34 => r4
+loadI 1036 => r5
+load r5 => r10
+loadI 1040 => r10
+store r5 => r10
+loadI 1032 => r1
+store r2 => r1
+add r5, r1 => r1
+loadI 1092 => r3
+load r3 => r2
+loadI 1080 => r8
+store r4 => r8
+add r8, r11 => r7
+sub r11, r7 => r4
+mult r0, r10 => r12
+sub r7, r0 => r6
+loadI 63 => r10
+loadI 71 => r7
+sub r9, r11 => r2
+sub r6, r9 => r3
+loadI 1052 => r8
+store r2 => r8
+mult r2, r7 => r3
+loadI 57 => r2
+add r4, r0 => r7
+add r0, r1 => r1
+loadI 1100 => r3
+store r0 => r3
+sub r6, r5 => r5
+add r2, r3 => r6
+sub r7, r2 => r10
+loadI 1096 => r0
+load r0 => r7
+add r5, r7 => r7
+mult r2, r10 => r4
+mult r7, r1 => r6
+loadI 1104 => r6
+load r6 => r1
+output 1024
+output 1028
+output 1032
+output 1036
+output 1040
+output 1044
+output 1048
+output 1052
+output 1056
+output 1060
+output 1064
+output 1068
+output 1072
+output 1076
+output 1080
+output 1084
+output 1088
+output 1092
+output 1096
@@ -0,0 +1,14 @@
+#!/bin/bash
+# Measures the time from launch to exit of 412alloc on a 100-line block, the
+# case where startup dominates. Run 'make build' or 'make cds' first.
+#
+# usage: bench/startup.sh [runs]
+cd "$(dirname "$0")/.."
+runs=${1:-20}
+bash 412alloc 5 bench/block100.i > /dev/null  # warm the file cache
+start=$(date +%s%N)
+for ((i = 0; i < runs; i++)); do
+    bash 412alloc 5 bench/block100.i > /dev/null
+done
+end=$(date +%s%N)
+echo "{\"benchmark\":\"startup\",\"block\":\"bench/block100.i\",\"runs\":$runs,\"cds\":$([ -f 412alloc.jsa ] && echo true || echo false),\"meanMillis\":$(( (end - start) / runs / 1000000 ))}"
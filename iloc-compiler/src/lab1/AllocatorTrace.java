@@ -0,0 +1,110 @@
+package src.lab1;
+
+/**
+ * A trace of an allocator's decisions, kept in a preallocated ring of ints so that
+ * recording an event allocates nothing. When the ring is full the oldest events
+ * are overwritten. Allocators hold a null trace unless tracing was asked for, so
+ * when it is off the only cost is a null check at each decision.
+ *
+ * Each event is a kind, the source line of the operation being allocated, the
+ * virtual register concerned, the physical register, and one more value that
+ * depends on the kind: the next use of an evicted value, a spill address, or the
+ * constant of a rematerialization.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class AllocatorTrace {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    // Room kept per operation in the ring of a short block: an assignment, eviction
+    // and store for each of two uses and a definition, and a reload for each use. A
+    // block that makes more loses its oldest events, as any full ring does.
+    static final int EVENTS_PER_OPERATION = 12;
+
+    // Kinds of event.
+    static final int ASSIGN = 0;
+    static final int EVICT = 1;
+    static final int STORE = 2;
+    static final int RELOAD = 3;
+    static final int REMATERIALIZE = 4;
+    private static final String[] NAMES = {"assign", "evict", "store", "reload", "rematerialize"};
+    // What the last value of each kind of event is.
+    private static final String[] EXTRAS = {"nextUseLine", "nextUseLine", "address", "address", "constant"};
+
+    private static final int FIELDS = 5;
+
+    private final int[] ring;
+    private final int capacity;
+    // Events recorded so far, including those overwritten.
+    private long count = 0;
+
+    AllocatorTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of most recent events kept.
+     */
+    AllocatorTrace(int capacity) {
+        this.capacity = capacity;
+        ring = new int[capacity * FIELDS];
+    }
+
+    /**
+     * Records an event.
+     */
+    void record(int kind, int line, int vr, int pr, int extra) {
+        int at = (int) (count++ % capacity) * FIELDS;
+        ring[at] = kind;
+        ring[at + 1] = line;
+        ring[at + 2] = vr;
+        ring[at + 3] = pr;
+        ring[at + 4] = extra;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Writes the kept events as JSON lines, oldest first. Next uses are given as
+     * source lines, and virtual registers with the source register they rename.
+     *
+     * @param out Receives the lines.
+     * @param name The name of the block, such as its file and label.
+     * @param renamer The renamer of the traced block.
+     * @param symbols The symbol table its registers were interned in.
+     */
+    void dump(StringBuilder out, String name, Renamer renamer, SymbolTable symbols) {
+        String block = quote(name);
+        long first = Math.max(0, count - capacity);
+        if (first > 0) {
+            out.append("{\"block\":").append(block).append(",\"event\":\"dropped\",\"count\":").append(first).append("}\n");
+        }
+        for (long e = first; e < count; e++) {
+            int at = (int) (e % capacity) * FIELDS;
+            int kind = ring[at];
+            int vr = ring[at + 2];
+            int extra = ring[at + 4];
+            out.append("{\"block\":").append(block)
+               .append(",\"event\":\"").append(NAMES[kind])
+               .append("\",\"line\":").append(ring[at + 1])
+               .append(",\"vr\":").append(vr);
+            int sr = renamer.SROf(vr);
+            if (sr < symbols.registerCount()) out.append(",\"register\":\"").append(symbols.registerName(sr)).append('"');
+            if (ring[at + 3] != Block.INVALID) out.append(",\"pr\":").append(ring[at + 3]);
+            out.append(",\"").append(EXTRAS[kind]).append("\":");
+            if (EXTRAS[kind].equals("nextUseLine")) {
+                // Next uses are operation indexes; report the line instead.
+                if (extra == Block.INFINITY) out.append("null"); else out.append(renamer.block().line(extra));
+            } else {
+                out.append(extra);
+            }
+            out.append("}\n");
+        }
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,487 @@
+package src.lab1;
+
+import java.util.BitSet;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Bottom-up local register allocator. The renamed block is walked once, front to
+ * back, and every live range is given one of k physical registers (PR). When no
+ * register is free, the value whose next use is farthest away is evicted: values
+ * defined by loadI are rematerialized, and everything else is stored to a spill
+ * location (once) and reloaded at its next use.
+ *
+ * Spill locations are colored like registers: a location is freed when the live
+ * range of its value ends and is handed to the next value spilled. Since the walk
+ * visits live ranges in order of their start, this is a linear-scan allocation of
+ * the spilled intervals, and the spill region only grows to the largest number of
+ * spilled values live at once.
+ *
+ * If MaxLive exceeds k, register k-1 is reserved to hold spill addresses.
+ *
+ * Optionally, the victim is chosen among clean values first, those that can be
+ * rematerialized or already have a copy in memory, since evicting them needs no
+ * store; the farthest next use then only breaks ties among them.
+ *
+ * @author Tyra Cole
+ *
+ */
+class AllocatorWithSpill {
+    private static final int INVALID = Block.INVALID;
+    // First address of the region reserved for the allocator, above the memory a
+    // program may address; by default every spilled value gets the next word.
+    static final int SPILL_BASE = 32768;
+    // Distance, in operations, between the allocator states recorded as checkpoints.
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    private final Renamer renamer;
+    private final Block block;
+    private final Block allocated;
+    private final int k;
+    private final int usable;
+    private final int spillPR;
+    // First address of the spill slots.
+    private final int spillBase;
+
+    private final int[] VRToPR;
+    private final int[] PRToVR;
+    private final int[] PRNU;
+    private final int[] VRToSpill;
+    private final int[] VRToConst;
+    private final boolean[] rematerializable;
+
+    // Stack of free physical registers.
+    private final int[] freePRs;
+    private int freeCount = 0;
+
+    // Live values that have been evicted from their register (a sparse set over VRs).
+    private final int[] evicted;
+    private final int[] evictedPos;
+    private int evictedCount = 0;
+
+    // Registers holding the uses of the current operation, which must not be evicted.
+    private int markA = INVALID;
+    private int markB = INVALID;
+
+    // Next spill location never used, and the used ones that are free again, by
+    // slot number. The lowest free slot is taken first, so the choice depends only
+    // on which values are live, and a resumed run picks the same slots as a full one.
+    private int nextSpill;
+    private final BitSet freeSlots = new BitSet();
+
+    // Counts of the code the allocator inserted.
+    private int stores = 0;
+    private int reloads = 0;
+    private int rematerializations = 0;
+
+    // Where decisions are traced, or null.
+    private AllocatorTrace trace;
+    // Whether victims that need no store are preferred.
+    private boolean preferClean = false;
+
+    // Where checkpoints are recorded, if anywhere, and the absolute index of this block's first operation.
+    private IntList checkpointStarts;
+    private IntList checkpointData;
+    private int checkpointBase;
+
+    /**
+     * Constructs an allocator for a renamed block, reserving a spill register only when needed.
+     *
+     * @param renamer The renamer that has already renamed the block.
+     * @param k The number of physical registers available.
+     */
+    AllocatorWithSpill(Renamer renamer, int k) {
+        this(renamer, k, SPILL_BASE);
+    }
+
+    /**
+     * Constructs an allocator whose spill slots start at spillBase, reserving a
+     * spill register only when needed.
+     *
+     * @param spillBase The first address of the spill slots, at least SPILL_BASE.
+     */
+    AllocatorWithSpill(Renamer renamer, int k, int spillBase) {
+        this(renamer, k, renamer.maxLive() > k, spillBase);
+    }
+
+    /**
+     * Constructs an allocator for a renamed block.
+     *
+     * @param renamer The renamer that has already renamed the block.
+     * @param k The number of physical registers available.
+     * @param reserveSpillRegister Whether register k-1 is kept aside for spill addresses.
+     */
+    AllocatorWithSpill(Renamer renamer, int k, boolean reserveSpillRegister) {
+        this(renamer, k, reserveSpillRegister, SPILL_BASE);
+    }
+
+    /**
+     * @param spillBase The first address of the spill slots, at least SPILL_BASE.
+     */
+    AllocatorWithSpill(Renamer renamer, int k, boolean reserveSpillRegister, int spillBase) {
+        this.renamer = renamer;
+        this.block = renamer.block();
+        CompilationContext context = renamer.context();
+        this.allocated = context.emptyLike(block, block.size() + block.size() / 4);
+        this.k = k;
+        this.usable = reserveSpillRegister ? k - 1 : k;
+        this.spillPR = reserveSpillRegister ? k - 1 : INVALID;
+        this.spillBase = spillBase;
+        this.nextSpill = spillBase;
+
+        int VRs = renamer.VRCount();
+        VRToPR = context.ints(VRs, INVALID);
+        VRToSpill = context.ints(VRs, INVALID);
+        VRToConst = context.ints(VRs, 0);
+        rematerializable = context.booleans(VRs);
+        evicted = context.ints(VRs, 0);
+        evictedPos = context.ints(VRs, 0);
+
+        PRToVR = context.ints(k, INVALID);
+        PRNU = context.ints(k, Block.INFINITY);
+        freePRs = context.ints(k, 0);
+        resetFreePRs();
+    }
+
+    /**
+     * Rebuilds the free stack from the registers that hold no value, so that the
+     * lowest numbered register is handed out first.
+     */
+    private void resetFreePRs() {
+        freeCount = 0;
+        for (int p = usable - 1; p >= 0; p--) {
+            if (PRToVR[p] == INVALID) freePRs[freeCount++] = p;
+        }
+    }
+
+    /**
+     * Records the allocator's decisions in a trace.
+     */
+    void trace(AllocatorTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Chooses victims among clean values before dirty ones.
+     */
+    void preferCleanVictims() {
+        preferClean = true;
+    }
+
+    /**
+     * Allocates every operation of the block, inserting spill and restore code as needed.
+     */
+    void allocateWithSpill() {
+        int n = block.size();
+        for (int i = 0; i < n; i++) {
+            Block.stopIfInterrupted(i);
+            checkpoint(i);
+            allocateOperation(i);
+        }
+        checkpoint(n);
+    }
+
+    /**
+     * Allocates the registers of a single operation and emits it, preceded by any
+     * spill or restore code it needs.
+     */
+    private void allocateOperation(int i) {
+        Category op = block.opcode(i);
+        int line = block.line(i);
+
+        // Make sure every use is in a register.
+        for (int slot = 0; slot < 2; slot++) {
+            if (!Block.isUse(op, slot)) continue;
+            int vr = block.VR(i, slot);
+            int pr = VRToPR[vr];
+            if (pr == INVALID) {
+                pr = getAPR(vr, block.NU(i, slot), line);
+                restore(vr, pr, line);
+            }
+            block.setPR(i, slot, pr);
+            if (markA == INVALID) markA = pr; else markB = pr;
+        }
+
+        // Release the registers of values that die here.
+        for (int slot = 0; slot < 2; slot++) {
+            if (!Block.isUse(op, slot)) continue;
+            int pr = block.PR(i, slot);
+            int nu = block.NU(i, slot);
+            if (nu == Block.INFINITY) {
+                if (PRToVR[pr] != INVALID) freeAPR(pr);
+                releaseSlot(block.VR(i, slot));
+            } else {
+                PRNU[pr] = nu;
+            }
+        }
+        markA = INVALID;
+        markB = INVALID;
+
+        // Then give the definition a register.
+        int defPR = INVALID;
+        if (Block.isDef(op, 2)) {
+            int vr = block.VR(i, 2);
+            defPR = getAPR(vr, block.NU(i, 2), line);
+            block.setPR(i, 2, defPR);
+            if (op == LOADI) {
+                rematerializable[vr] = true;
+                VRToConst[vr] = block.SR(i, 0);
+            }
+        }
+
+        emit(i);
+
+        if (defPR != INVALID && block.NU(i, 2) == Block.INFINITY) freeAPR(defPR);
+    }
+
+    /**
+     * Gives a virtual register a physical one, evicting another value if none is free.
+     */
+    private int getAPR(int vr, int nu, int line) {
+        int pr;
+        if (freeCount > 0) {
+            pr = freePRs[--freeCount];
+        } else {
+            pr = pickVictim();
+            spill(pr, line);
+        }
+        VRToPR[vr] = pr;
+        PRToVR[pr] = vr;
+        PRNU[pr] = nu;
+        if (trace != null) trace.record(AllocatorTrace.ASSIGN, line, vr, pr, nu);
+        return pr;
+    }
+
+    /**
+     * @return The unmarked register whose value is used farthest in the future,
+     *         among the clean ones if they are preferred and there are any.
+     */
+    private int pickVictim() {
+        if (preferClean) {
+            int victim = pickVictim(true);
+            if (victim != INVALID) return victim;
+        }
+        return pickVictim(false);
+    }
+
+    private int pickVictim(boolean cleanOnly) {
+        int victim = INVALID;
+        int farthest = -1;
+        for (int p = 0; p < usable; p++) {
+            if (p == markA || p == markB) continue;
+            if (cleanOnly && !rematerializable[PRToVR[p]] && VRToSpill[PRToVR[p]] == INVALID) continue;
+            if (PRNU[p] > farthest) {
+                farthest = PRNU[p];
+                victim = p;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Returns a register to the free stack.
+     */
+    private void freeAPR(int pr) {
+        VRToPR[PRToVR[pr]] = INVALID;
+        PRToVR[pr] = INVALID;
+        PRNU[pr] = Block.INFINITY;
+        freePRs[freeCount++] = pr;
+    }
+
+    /**
+     * Evicts the value held in a register. A value that can be rematerialized, or that
+     * already has a copy in memory, needs no store.
+     */
+    private void spill(int pr, int line) {
+        if (spillPR == INVALID) throw new IllegalStateException("Spill needed but no spill register is reserved");
+        int vr = PRToVR[pr];
+        if (trace != null) trace.record(AllocatorTrace.EVICT, line, vr, pr, PRNU[pr]);
+        if (!rematerializable[vr] && VRToSpill[vr] == INVALID) {
+            int free = freeSlots.nextSetBit(0);
+            if (free >= 0) {
+                freeSlots.clear(free);
+                VRToSpill[vr] = spillBase + 4 * free;
+            } else {
+                VRToSpill[vr] = nextSpill;
+                nextSpill += 4;
+            }
+            stores++;
+            if (trace != null) trace.record(AllocatorTrace.STORE, line, vr, pr, VRToSpill[vr]);
+            emitLoadI(VRToSpill[vr], spillPR, line);
+            int s = allocated.add(STORE, line);
+            allocated.setPR(s, 0, pr);
+            allocated.setPR(s, 1, spillPR);
+        }
+        VRToPR[vr] = INVALID;
+        PRToVR[pr] = INVALID;
+        evictedPos[vr] = evictedCount;
+        evicted[evictedCount++] = vr;
+    }
+
+    /**
+     * Brings an evicted value back into a register.
+     */
+    private void restore(int vr, int pr, int line) {
+        if (rematerializable[vr]) {
+            rematerializations++;
+            if (trace != null) trace.record(AllocatorTrace.REMATERIALIZE, line, vr, pr, VRToConst[vr]);
+            emitLoadI(VRToConst[vr], pr, line);
+        } else if (VRToSpill[vr] != INVALID) {
+            reloads++;
+            if (trace != null) trace.record(AllocatorTrace.RELOAD, line, vr, pr, VRToSpill[vr]);
+            emitLoadI(VRToSpill[vr], spillPR, line);
+            int l = allocated.add(LOAD, line);
+            allocated.setPR(l, 0, spillPR);
+            allocated.setPR(l, 2, pr);
+        } else {
+            return;  // Used before it is defined: there is nothing to restore.
+        }
+        // Remove vr from the evicted set by moving the last member into its place.
+        int last = evicted[--evictedCount];
+        evicted[evictedPos[vr]] = last;
+        evictedPos[last] = evictedPos[vr];
+    }
+
+    /**
+     * Frees the spill location of a value whose live range has ended.
+     */
+    private void releaseSlot(int vr) {
+        if (VRToSpill[vr] == INVALID) return;
+        freeSlots.set((VRToSpill[vr] - spillBase) / 4);
+        VRToSpill[vr] = INVALID;
+    }
+
+    private void emitLoadI(int constant, int pr, int line) {
+        int l = allocated.add(LOADI, line);
+        allocated.setSR(l, 0, constant);
+        allocated.setPR(l, 2, pr);
+    }
+
+    /**
+     * Copies operation i, with its physical registers, to the allocated block.
+     */
+    private void emit(int i) {
+        Category op = block.opcode(i);
+        int o = allocated.add(op, block.line(i));
+        if (Block.hasConstant(op)) allocated.setSR(o, 0, block.SR(i, 0));
+        for (int slot = 0; slot < Block.SLOTS; slot++) {
+            if (Block.isRegister(op, slot)) allocated.setPR(o, slot, block.PR(i, slot));
+        }
+    }
+
+    /**
+     * Asks the allocator to record its state every CHECKPOINT_INTERVAL operations.
+     * Each checkpoint is the index of the next allocated operation, the next spill
+     * address and the number of live values, followed by one entry per live value:
+     * its source register, its register (or INVALID), its spill address (or INVALID),
+     * whether it is rematerializable, and its constant.
+     *
+     * @param base The absolute index of the block's first operation.
+     * @param starts Receives the offset of each checkpoint in data.
+     * @param data Receives the checkpoints.
+     */
+    void recordCheckpoints(int base, IntList starts, IntList data) {
+        checkpointBase = base;
+        checkpointStarts = starts;
+        checkpointData = data;
+    }
+
+    private void checkpoint(int i) {
+        if (checkpointData == null || (checkpointBase + i) % CHECKPOINT_INTERVAL != 0) return;
+        checkpointStarts.add(checkpointData.size());
+        checkpointData.add(allocated.size());
+        checkpointData.add(nextSpill);
+        int count = checkpointData.size();
+        checkpointData.add(0);
+        int live = 0;
+        for (int p = 0; p < usable; p++) {
+            if (PRToVR[p] != INVALID) {
+                addCheckpointEntry(PRToVR[p], p);
+                live++;
+            }
+        }
+        for (int e = 0; e < evictedCount; e++) {
+            addCheckpointEntry(evicted[e], INVALID);
+            live++;
+        }
+        checkpointData.set(count, live);
+    }
+
+    private void addCheckpointEntry(int vr, int pr) {
+        checkpointData.add(renamer.SROf(vr));
+        checkpointData.add(pr);
+        checkpointData.add(VRToSpill[vr]);
+        checkpointData.add(rematerializable[vr] ? 1 : 0);
+        checkpointData.add(VRToConst[vr]);
+    }
+
+    /**
+     * Starts allocation from a checkpoint recorded by an earlier run over the same
+     * prefix. Values the renamer reports as live on entry take the register, spill
+     * location or constant they had then; everything else is dropped, and every
+     * spill location not held by a live value is free.
+     *
+     * @param data The recorded checkpoints.
+     * @param offset The offset of the checkpoint to resume from.
+     */
+    void resume(int[] data, int offset) {
+        nextSpill = data[offset + 1];
+        int count = data[offset + 2];
+        for (int e = 0, at = offset + 3; e < count; e++, at += 5) {
+            int vr = renamer.liveInVR(data[at]);
+            if (vr == INVALID) continue;
+            int pr = data[at + 1];
+            VRToSpill[vr] = data[at + 2];
+            rematerializable[vr] = data[at + 3] != 0;
+            VRToConst[vr] = data[at + 4];
+            if (pr != INVALID) {
+                VRToPR[vr] = pr;
+                PRToVR[pr] = vr;
+                PRNU[pr] = renamer.liveInNU(data[at]);
+            } else {
+                evictedPos[vr] = evictedCount;
+                evicted[evictedCount++] = vr;
+            }
+        }
+        resetFreePRs();
+
+        freeSlots.set(0, (nextSpill - spillBase) / 4);
+        for (int e = 0, at = offset + 3; e < count; e++, at += 5) {
+            if (renamer.liveInVR(data[at]) != INVALID && data[at + 2] != INVALID) {
+                freeSlots.clear((data[at + 2] - spillBase) / 4);
+            }
+        }
+    }
+
+    /**
+     * Prints the allocated block to stdout.
+     */
+    void printAllocatedBlock() {
+        allocated.print(Block.PR_COLUMN);
+    }
+
+    Block allocated() {
+        return allocated;
+    }
+
+    /**
+     * @return The most spill memory the block used at once, in bytes.
+     */
+    int spillBytes() {
+        return nextSpill - spillBase;
+    }
+
+    /**
+     * Adds the allocator's counts to a stats record.
+     */
+    void addStats(Stats stats) {
+        stats.put("k", k);
+        stats.put("maxLive", renamer.maxLive());
+        stats.put("operations", block.size());
+        stats.put("allocatedOperations", allocated.size());
+        stats.put("stores", stores);
+        stats.put("reloads", reloads);
+        stats.put("rematerializations", rematerializations);
+        stats.put("spillBytes", spillBytes());
+    }
+}
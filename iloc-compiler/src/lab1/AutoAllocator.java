@@ -0,0 +1,173 @@
+package src.lab1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Allocates a block with several strategies and keeps the cheapest result, as
+ * scored by the simulator's latency model (see Latency). The strategies are
+ * <ul>
+ *   <li>bottom-up: evicts the value used farthest in the future;</li>
+ *   <li>bottom-up-clean: evicts a value that needs no store when there is one;</li>
+ *   <li>linear-scan: one pass over live ranges with a heap of next uses.</li>
+ * </ul>
+ * Each strategy renames and allocates its own copy of the block. The first runs
+ * on the calling thread and always finishes, so there is always a result, even
+ * if that takes longer than the budget. The others run in parallel on threads of
+ * their own, not those of the common pool that Program allocates blocks on, and
+ * are interrupted and dropped if they have not finished when the budget is spent;
+ * the renamer and allocators check for that every few thousand operations. Ties
+ * go to the strategy listed first.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class AutoAllocator {
+    static final String[] STRATEGIES = {"bottom-up", "bottom-up-clean", "linear-scan"};
+
+    // Runs every strategy but the first. Its threads are daemons, so that a strategy
+    // still stopping after its interrupt never keeps the program from exiting.
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "auto-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Block block;
+    private final int k;
+    private final long budgetMillis;
+    private final int spillBase;
+
+    // The chosen strategy, its renamer and its trace, after allocate.
+    private String strategy;
+    private Renamer renamer;
+    private AllocatorTrace trace;
+
+    /**
+     * @param block The block to allocate, in its source registers.
+     * @param k The number of physical registers available.
+     * @param budgetMillis How long to wait for the strategies, counted from the start.
+     * @param spillBase The first address of the spill slots, at least SPILL_BASE.
+     */
+    AutoAllocator(Block block, int k, long budgetMillis, int spillBase) {
+        this.block = block;
+        this.k = k;
+        this.budgetMillis = budgetMillis;
+        this.spillBase = spillBase;
+    }
+
+    /**
+     * The result of one strategy.
+     */
+    private static final class Candidate {
+        Renamer renamer;
+        AllocatorTrace trace;
+        Block allocated;
+        Stats stats = new Stats();
+        long cycles;
+    }
+
+    /**
+     * Runs the strategies and returns the cheapest allocated block.
+     *
+     * @param record Receives the chosen strategy's stats, its estimated cycles, and
+     *               an object of the score of every strategy, or "timeout" for those
+     *               dropped and "failed" for those that could not allocate the block.
+     * @param traceCapacity The capacity of each strategy's trace, or 0 for none.
+     * @return The allocated block.
+     */
+    Block allocate(Stats record, int traceCapacity) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        // Copy the block for every other strategy before the first one renames it.
+        Block[] copies = new Block[STRATEGIES.length];
+        for (int s = 1; s < STRATEGIES.length; s++) copies[s] = block.copy();
+        // Indexed by strategy; the first runs here and has no future.
+        List<Future<Candidate>> futures = new ArrayList<>();
+        futures.add(null);
+        for (int s = 1; s < STRATEGIES.length; s++) {
+            int strategy = s;
+            futures.add(EXECUTOR.submit(() -> run(strategy, copies[strategy], traceCapacity)));
+        }
+
+        Candidate[] candidates = new Candidate[STRATEGIES.length];
+        Stats scores = new Stats();
+        candidates[0] = run(0, block, traceCapacity);
+        scores.put(STRATEGIES[0], candidates[0].cycles);
+        int best = 0;
+        for (int s = 1; s < STRATEGIES.length; s++) {
+            try {
+                long left = Math.max(0, deadline - System.nanoTime());
+                candidates[s] = futures.get(s).get(left, TimeUnit.NANOSECONDS);
+                scores.put(STRATEGIES[s], candidates[s].cycles);
+                if (candidates[s].cycles < candidates[best].cycles) best = s;
+            } catch (TimeoutException e) {
+                futures.get(s).cancel(true);
+                scores.put(STRATEGIES[s], "timeout");
+            } catch (InterruptedException e) {
+                futures.get(s).cancel(true);
+                scores.put(STRATEGIES[s], "timeout");
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // A strategy that cannot allocate the block is simply not chosen.
+                scores.put(STRATEGIES[s], "failed");
+            }
+        }
+
+        Candidate chosen = candidates[best];
+        strategy = STRATEGIES[best];
+        renamer = chosen.renamer;
+        trace = chosen.trace;
+        record.putAll(chosen.stats);
+        record.put("estimatedCycles", chosen.cycles);
+        record.put("candidates", scores);
+        record.put("budgetMillis", budgetMillis);
+        return chosen.allocated;
+    }
+
+    private Candidate run(int strategy, Block block, int traceCapacity) {
+        Candidate candidate = new Candidate();
+        candidate.renamer = new Renamer(block);
+        candidate.renamer.renameSR2LiveRange();
+        if (traceCapacity > 0) candidate.trace = new AllocatorTrace(traceCapacity);
+        if (strategy == 1) {
+            AllocatorWithSpill allocator = new AllocatorWithSpill(candidate.renamer, k, spillBase);
+            allocator.preferCleanVictims();
+            allocator.trace(candidate.trace);
+            allocator.allocateWithSpill();
+            candidate.stats.put("allocator", STRATEGIES[strategy]);
+            allocator.addStats(candidate.stats);
+            candidate.allocated = allocator.allocated();
+        } else {
+            candidate.allocated = Main.allocateBlock(candidate.renamer, k, strategy == 2, spillBase, candidate.stats, candidate.trace);
+        }
+        candidate.cycles = Latency.cycles(candidate.allocated);
+        return candidate;
+    }
+
+    /**
+     * @return The name of the chosen strategy, after allocate.
+     */
+    String strategy() {
+        return strategy;
+    }
+
+    /**
+     * @return The renamer of the chosen strategy, after allocate.
+     */
+    Renamer renamer() {
+        return renamer;
+    }
+
+    /**
+     * @return The trace of the chosen strategy, after allocate, or null.
+     */
+    AllocatorTrace trace() {
+        return trace;
+    }
+}
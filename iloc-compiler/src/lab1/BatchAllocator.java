@@ -0,0 +1,244 @@
+package src.lab1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates many files at once, writing each result to a file of the same name in
+ * an output directory. For small files the time goes into blocking reads and
+ * writes rather than allocation, so the work is split into two stages:
+ * <ul>
+ *   <li>an I/O pool, with many more threads than cores, reads, scans and parses
+ *       each file and later writes its result;</li>
+ *   <li>a pool with one thread per core takes the parsed files from a bounded
+ *       queue, renames and allocates their blocks, and hands the code back for
+ *       writing.</li>
+ * </ul>
+ * A file holds a permit from the time it is read until its result is written, so
+ * at most IN_FLIGHT_PER_CORE files per core are in memory at once: when allocation
+ * is the bottleneck, readers wait for permits instead of piling up parsed blocks.
+ * Whatever happens to a file, including an Error while it is read or allocated,
+ * its permit comes back and the failure is reported, so the run always ends.
+ *
+ * Inputs whose names would be written to the same output file, such as a/x.i and
+ * b/x.i, are rejected rather than left to overwrite one another.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class BatchAllocator {
+    // Threads that block on reads and writes.
+    private static final int IO_THREADS = 32;
+    // Files in memory at once, per allocation thread.
+    private static final int IN_FLIGHT_PER_CORE = 4;
+
+    private final Path outputDirectory;
+    private final int k;
+    private final boolean optimize;
+    private final boolean linearScan;
+    private final boolean stats;
+
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS, daemon("io"));
+    private final BlockingQueue<Job> parsed = new ArrayBlockingQueue<>(cores * IN_FLIGHT_PER_CORE);
+    private final Semaphore inFlight = new Semaphore(cores * IN_FLIGHT_PER_CORE);
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * A parsed file on its way to the allocation stage; a job with no parser ends the stream.
+     */
+    private static final class Job {
+        final String filename;
+        final Program program;
+
+        Job(String filename, Program program) {
+            this.filename = filename;
+            this.program = program;
+        }
+    }
+
+    private static final Job END = new Job(null, null);
+
+    /**
+     * @param outputDirectory Where the allocated code of each file is written.
+     * @param k The number of physical registers available.
+     * @param optimize Whether to run the peephole optimizer on the allocated code.
+     * @param linearScan Whether to allocate with linear scan.
+     * @param stats Whether to report a stats line per file on stderr.
+     */
+    BatchAllocator(String outputDirectory, int k, boolean optimize, boolean linearScan, boolean stats) {
+        this.outputDirectory = Paths.get(outputDirectory);
+        this.k = k;
+        this.optimize = optimize;
+        this.linearScan = linearScan;
+        this.stats = stats;
+    }
+
+    /**
+     * Allocates every file and waits until every result is written.
+     *
+     * @return The number of files that could not be read, parsed or written.
+     */
+    int run(List<String> filenames) throws IOException, InterruptedException {
+        Map<Path, Integer> outputs = new HashMap<>();
+        for (String filename : filenames) outputs.merge(output(filename), 1, Integer::sum);
+        Files.createDirectories(outputDirectory);
+        Thread[] workers = new Thread[cores];
+        for (int w = 0; w < cores; w++) {
+            workers[w] = new Thread(this::allocateAll, "allocator-" + w);
+            workers[w].start();
+        }
+
+        for (String filename : filenames) {
+            if (outputs.get(output(filename)) > 1) {
+                report(filename + " has the same name as another input, so both would be written to "
+                        + output(filename));
+                continue;
+            }
+            inFlight.acquire();
+            io.execute(() -> read(filename));
+        }
+        // Once every permit is back, every file has been written or has failed.
+        inFlight.acquire(cores * IN_FLIGHT_PER_CORE);
+        for (int w = 0; w < cores; w++) parsed.put(END);
+        for (Thread worker : workers) worker.join();
+        io.shutdown();
+        io.awaitTermination(1, TimeUnit.MINUTES);
+        return failures.get();
+    }
+
+    /**
+     * Reads, scans and parses a file, then queues it for allocation.
+     */
+    private void read(String filename) {
+        // Unless the file is queued, its permit comes back in fail.
+        String error = "Error reading file: " + filename;
+        try {
+            byte[] bytes = Files.readAllBytes(Paths.get(filename));
+            String file = new String(bytes, Charset.defaultCharset());
+            Diagnostics diagnostics = new Diagnostics();
+            CompilerEvents.ScanEvent scan = CompilerEvents.beginScan();
+            Scanner scanner = new Scanner(file, diagnostics);
+            List<Token> tokens = scanner.addTokens();
+            CompilerEvents.commitScan(scan, filename, tokens.size());
+            CompilerEvents.ParseEvent parse = CompilerEvents.beginParse();
+            Parser parser = new Parser(tokens, diagnostics);
+            CompilerEvents.commitParse(parse, filename, parser.parse().size());
+            if (parser.hasError()) {
+                ByteArrayOutputStream messages = new ByteArrayOutputStream();
+                diagnostics.flush(new PrintStream(messages, true));
+                error = filename + ":\n" + messages;
+                return;
+            }
+            Program program = new Program(parser, scanner.symbols(), filename);
+            program.reuseMemory();
+            parsed.put(new Job(filename, program));
+            error = null;
+        } catch (IOException e) {
+            error = "Error reading file: " + filename;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted reading file: " + filename;
+        } catch (RuntimeException | Error e) {
+            error = "Error reading file: " + filename + ": " + e;
+        } finally {
+            if (error != null) fail(error);
+        }
+    }
+
+    /**
+     * Body of an allocation thread: allocates queued files until the end of the stream.
+     */
+    private void allocateAll() {
+        try {
+            for (Job job = parsed.take(); job != END; job = parsed.take()) {
+                allocate(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void allocate(Job job) {
+        // Unless the code is handed to a writer, the permit comes back in fail.
+        String error = "Error allocating file: " + job.filename;
+        try {
+            String code = job.program.allocate(k, linearScan, optimize);
+            StringBuilder lines = new StringBuilder();
+            for (int b = 0; stats && b < job.program.blockCount(); b++) {
+                lines.append(job.program.stats(b).toJson()).append('\n');
+            }
+            String statsLines = stats ? lines.toString() : null;
+            io.execute(() -> write(job.filename, code, statsLines));
+            error = null;
+        } catch (RuntimeException | Error e) {
+            error = "Error allocating file: " + job.filename + ": " + e;
+        } finally {
+            if (error != null) fail(error);
+        }
+    }
+
+    private void write(String filename, String code, String statsLines) {
+        Path out = output(filename);
+        try {
+            Files.write(out, code.getBytes(Charset.defaultCharset()));
+            if (statsLines != null) System.err.print(statsLines);
+        } catch (IOException e) {
+            report("Error writing file: " + out);
+        } catch (RuntimeException | Error e) {
+            report("Error writing file: " + out + ": " + e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * @return The file the allocated code of an input is written to.
+     */
+    private Path output(String filename) {
+        return outputDirectory.resolve(Paths.get(filename).getFileName());
+    }
+
+    /**
+     * Reports a file that failed and gives back its permit.
+     */
+    private void fail(String message) {
+        report(message);
+        inFlight.release();
+    }
+
+    /**
+     * Reports a file that failed.
+     */
+    private void report(String message) {
+        failures.incrementAndGet();
+        synchronized (System.err) {
+            System.err.print("ERROR -1: " + message + (message.endsWith("\n") ? "" : "\n"));
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,266 @@
+package src.lab1;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Times the whole pipeline of 412alloc, as it is run: read, scan, parse, rename,
+ * allocate and print the code, for every .i file of a corpus directory, a number
+ * of times. The first pass over the corpus warms up the JVM and is not counted.
+ * The results are JSON lines on stdout:
+ * <ul>
+ *   <li>one per file, with its operations and its p50, p99 and max latency in
+ *       milliseconds over the iterations;</li>
+ *   <li>one for the corpus, with the input read per second in MB and the
+ *       operations allocated per second, over all the timed runs.</li>
+ * </ul>
+ * Given a baseline file, a run is compared with it if it exists and saved to it
+ * otherwise. A run regresses if the p50 of a file rises, or the MB/s of the corpus
+ * falls, by more than the threshold; the regressions are printed to stderr and
+ * the exit status is 1. The p99 and max are reported but not compared, being too
+ * noisy over a few iterations to fail a build on. A baseline made with another k,
+ * allocator, peephole setting or front end is refused, with exit status 1, since
+ * the two runs would not time the same work.
+ *
+ * Usage: java src.lab1.Benchmark corpus [-k registers] [-n iterations] [-l] [-O] [-f]
+ *                                [-baseline file] [-threshold percent] [-save]
+ *
+ * -f scans and parses with the FusedParser rather than the Scanner and Parser,
+ * and -save writes the baseline even when there is one to compare with.
+ *
+ * @author Tyra Cole
+ *
+ */
+public final class Benchmark {
+    private static final int DEFAULT_K = 5;
+    private static final int DEFAULT_ITERATIONS = 10;
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+
+    /**
+     * A file of the corpus and its latency in each iteration.
+     */
+    private static final class Sample {
+        final Path path;
+        final long[] nanos;
+        long bytes;
+        int operations;
+
+        Sample(Path path, int iterations) {
+            this.path = path;
+            this.nanos = new long[iterations];
+        }
+
+        String name() {
+            return path.getFileName().toString();
+        }
+
+        double percentileMillis(double q) {
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(q * sorted.length);
+            return sorted[Math.max(rank, 1) - 1] / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<>();
+        String corpus = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-l") || args[i].equals("-O") || args[i].equals("-f")
+                    || args[i].equals("-save")) {
+                opts.put(args[i], null);
+            } else if (args[i].startsWith("-")) {
+                opts.put(args[i], i + 1 < args.length ? args[++i] : null);
+            } else {
+                corpus = args[i];
+            }
+        }
+        if (corpus == null) {
+            System.err.println("usage: java src.lab1.Benchmark corpus [-k registers] [-n iterations] [-l] [-O] [-f]"
+                    + " [-baseline file] [-threshold percent] [-save]");
+            System.exit(1);
+        }
+        int k = opts.containsKey("-k") ? Integer.parseInt(opts.get("-k")) : DEFAULT_K;
+        int iterations = opts.containsKey("-n") ? Integer.parseInt(opts.get("-n")) : DEFAULT_ITERATIONS;
+        boolean linearScan = opts.containsKey("-l");
+        boolean optimize = opts.containsKey("-O");
+        boolean fused = opts.containsKey("-f");
+        double threshold = (opts.containsKey("-threshold")
+                ? Double.parseDouble(opts.get("-threshold")) : DEFAULT_THRESHOLD_PERCENT) / 100;
+
+        List<Sample> samples = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Paths.get(corpus))) {
+            for (Path path : files.filter(p -> p.toString().endsWith(".i")).sorted().collect(Collectors.toList())) {
+                samples.add(new Sample(path, iterations));
+            }
+        }
+        if (samples.isEmpty()) {
+            System.err.println("ERROR: no .i files in " + corpus);
+            System.exit(1);
+        }
+
+        long printed = 0;
+        for (Sample sample : samples) printed += run(sample, k, linearScan, optimize, fused);
+        long totalNanos = 0;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (Sample sample : samples) {
+                long start = System.nanoTime();
+                printed += run(sample, k, linearScan, optimize, fused);
+                sample.nanos[iteration] = System.nanoTime() - start;
+                totalNanos += sample.nanos[iteration];
+            }
+        }
+
+        List<Stats> lines = new ArrayList<>();
+        long bytes = 0;
+        long operations = 0;
+        for (Sample sample : samples) {
+            bytes += sample.bytes;
+            operations += sample.operations;
+            lines.add(new Stats().put("file", sample.name()).put("operations", sample.operations)
+                    .put("p50Millis", sample.percentileMillis(0.50))
+                    .put("p99Millis", sample.percentileMillis(0.99))
+                    .put("maxMillis", sample.percentileMillis(1.0)));
+        }
+        double seconds = totalNanos / 1e9;
+        lines.add(new Stats().put("corpus", corpus).put("files", samples.size()).put("k", k)
+                .put("allocator", linearScan ? "linear-scan" : "bottom-up").put("peephole", optimize ? "on" : "off")
+                .put("frontEnd", fused ? "fused" : "scanner-parser")
+                .put("iterations", iterations).put("seconds", seconds)
+                .put("mbPerSecond", bytes * iterations / 1e6 / seconds)
+                .put("opsPerSecond", operations * iterations / seconds)
+                .put("printedCharacters", printed));
+        StringBuilder out = new StringBuilder();
+        for (Stats line : lines) out.append(line.toJson()).append('\n');
+        System.out.print(out);
+
+        if (!opts.containsKey("-baseline")) return;
+        Path baseline = Paths.get(opts.get("-baseline"));
+        int regressions = 0;
+        if (Files.exists(baseline)) {
+            String[] before = Files.readAllLines(baseline, Charset.defaultCharset()).toArray(new String[0]);
+            String[] after = out.toString().split("\n");
+            if (!settings(before).equals(settings(after))) {
+                boolean save = opts.containsKey("-save");
+                System.err.println((save ? "WARNING: " : "ERROR: ") + baseline + " was made with " + settings(before)
+                        + ", not " + settings(after) + (save ? "; replacing it" : "; run with -save to replace it"));
+                if (!save) System.exit(1);
+            } else {
+                regressions = compare(before, after, threshold);
+            }
+        }
+        if (!Files.exists(baseline) || opts.containsKey("-save")) {
+            Files.write(baseline, out.toString().getBytes(Charset.defaultCharset()));
+            System.err.println("Baseline written to " + baseline);
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " regression(s) beyond " + Math.round(threshold * 100) + "% of " + baseline);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads, scans, parses and allocates a file, as 412alloc does.
+     *
+     * @return The number of characters of code printed, so the work cannot be skipped.
+     */
+    private static int run(Sample sample, int k, boolean linearScan, boolean optimize, boolean fused) throws IOException {
+        byte[] bytes = Files.readAllBytes(sample.path);
+        String file = new String(bytes, Charset.defaultCharset());
+        Diagnostics diagnostics = new Diagnostics();
+        Program program;
+        if (fused) {
+            FusedParser parser = new FusedParser(file, diagnostics);
+            parser.parse();
+            sample.operations = parser.operations();
+            program = parser.hasError() ? null : new Program(parser, sample.path.toString());
+        } else {
+            Scanner scanner = new Scanner(file, diagnostics);
+            Parser parser = new Parser(scanner.addTokens(), diagnostics);
+            sample.operations = parser.parse().size();
+            program = parser.hasError() ? null : new Program(parser, scanner.symbols(), sample.path.toString());
+        }
+        if (program == null) {
+            diagnostics.flush(System.err);
+            System.err.println("ERROR: " + sample.path + " does not parse");
+            System.exit(1);
+        }
+        sample.bytes = bytes.length;
+        return program.allocate(k, linearScan, optimize).length();
+    }
+
+    /**
+     * Prints every regression of a run against a baseline.
+     *
+     * @return The number of regressions.
+     */
+    private static int compare(String[] baseline, String[] run, double threshold) {
+        Map<String, Double> p50 = new HashMap<>();
+        double mbPerSecond = 0;
+        for (String line : baseline) {
+            String file = text(line, "file");
+            if (file != null) p50.put(file, number(line, "p50Millis"));
+            else if (text(line, "corpus") != null) mbPerSecond = number(line, "mbPerSecond");
+        }
+        int regressions = 0;
+        for (String line : run) {
+            String file = text(line, "file");
+            if (file != null && p50.containsKey(file)) {
+                double before = p50.get(file);
+                double after = number(line, "p50Millis");
+                if (after > before * (1 + threshold)) {
+                    System.err.printf(Locale.ROOT, "REGRESSION %s: p50 %.3f ms -> %.3f ms%n", file, before, after);
+                    regressions++;
+                }
+            } else if (file == null && mbPerSecond > 0) {
+                double after = number(line, "mbPerSecond");
+                if (after < mbPerSecond * (1 - threshold)) {
+                    System.err.printf(Locale.ROOT, "REGRESSION corpus: %.3f MB/s -> %.3f MB/s%n", mbPerSecond, after);
+                    regressions++;
+                }
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * @return The settings a run was made with, from its corpus line.
+     */
+    private static String settings(String[] run) {
+        for (String line : run) {
+            if (text(line, "file") != null || text(line, "corpus") == null) continue;
+            return "k=" + (long) number(line, "k") + " allocator=" + text(line, "allocator")
+                    + " peephole=" + text(line, "peephole") + " frontEnd=" + text(line, "frontEnd");
+        }
+        return "no settings";
+    }
+
+    /**
+     * @return The string field key of a JSON line written by Stats, or null.
+     */
+    private static String text(String line, String key) {
+        Matcher m = Pattern.compile("\"" + key + "\":\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(line);
+        return m.find() ? m.group(1).replace("\\\"", "\"").replace("\\\\", "\\") : null;
+    }
+
+    /**
+     * @return The number field key of a JSON line written by Stats, or 0.
+     */
+    private static double number(String line, String key) {
+        Matcher m = Pattern.compile("\"" + key + "\":(-?[0-9.]+)").matcher(line);
+        return m.find() ? Double.parseDouble(m.group(1)) : 0;
+    }
+}
@@ -0,0 +1,393 @@
+package src.lab1;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.IntFunction;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Flat representation of a block of ILOC operations, laid out as the table
+ * used by the register allocator. Every operation owns three operand slots and
+ * every slot records a source register (SR), a virtual register (VR), a
+ * physical register (PR) and a next use (NU).
+ *
+ * Slots 0 and 1 always hold uses and slot 2 always holds the definition. For
+ * loadI and output the constant is kept in the SR column of slot 0. Source
+ * registers are the dense ids given out by the scanner's SymbolTable.
+ *
+ * The columns are kept on the Java heap unless the block is made with another
+ * storage (see Column); blocks made from a block with emptyLike share its storage.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Block {
+    static final int INVALID = -1;
+    static final int INFINITY = Integer.MAX_VALUE;
+    static final int SLOTS = 3;
+
+    // Selectors for the register column used when printing a block.
+    static final int SR_COLUMN = 0;
+    static final int VR_COLUMN = 1;
+    static final int PR_COLUMN = 2;
+
+    private static final Category[] CATEGORIES = Category.values();
+    // How many operations the passes over a block go between checks for interruption.
+    private static final int INTERRUPT_INTERVAL = 1 << 12;
+
+    // Number of operations in the block, and the number there is room for.
+    private int size = 0;
+    private int capacity;
+    // Largest source register number seen, used to size the renamer's maps.
+    private int maxSR = INVALID;
+    // Names the source registers when the SR column is printed, if set.
+    private SymbolTable symbols;
+    // One entry per operation.
+    private Column opcode;
+    private Column line;
+    // One entry per operand slot (SLOTS per operation).
+    private Column SR;
+    private Column VR;
+    private Column PR;
+    private Column NU;
+
+    /**
+     * Constructs an empty block with room for capacity operations.
+     *
+     * @param capacity The initial number of operations the block can hold.
+     */
+    Block(int capacity) {
+        this(capacity, Column.HEAP);
+    }
+
+    /**
+     * Constructs an empty block whose columns are kept in the given storage.
+     *
+     * @param capacity The initial number of operations the block can hold.
+     * @param storage Makes the columns.
+     */
+    Block(int capacity, IntFunction<Column> storage) {
+        capacity = Math.max(capacity, 16);
+        this.capacity = capacity;
+        opcode = storage.apply(capacity);
+        line = storage.apply(capacity);
+        SR = storage.apply(capacity * SLOTS);
+        VR = storage.apply(capacity * SLOTS);
+        PR = storage.apply(capacity * SLOTS);
+        NU = storage.apply(capacity * SLOTS);
+    }
+
+    /**
+     * @return An empty block with room for capacity operations, kept in the same
+     *         storage as this one.
+     */
+    Block emptyLike(int capacity) {
+        return new Block(capacity, opcode.storage());
+    }
+
+    /**
+     * Builds a block from the operations produced by the parser.
+     *
+     * @param ops The parsed operations.
+     * @return A block holding the operations in source order.
+     */
+    static Block from(List<Operations> ops) {
+        return from(ops, Column.HEAP);
+    }
+
+    /**
+     * Builds a block from the operations produced by the parser, keeping its
+     * columns in the given storage.
+     */
+    static Block from(List<Operations> ops, IntFunction<Column> storage) {
+        Block block = new Block(ops.size(), storage);
+        Appender appender = new Appender(block);
+        for (Operations op : ops) {
+            op.accept(appender);
+        }
+        return block;
+    }
+
+    /**
+     * Appends a new operation whose operand slots are all empty.
+     *
+     * @param category The opcode of the operation.
+     * @param sourceLine The line in the source where the operation was found.
+     * @return The index of the new operation.
+     */
+    int add(Category category, int sourceLine) {
+        if (size == capacity) grow();
+        int i = size++;
+        opcode.set(i, category.ordinal());
+        line.set(i, sourceLine);
+        for (int s = i * SLOTS; s < (i + 1) * SLOTS; s++) {
+            SR.set(s, INVALID);
+            VR.set(s, INVALID);
+            PR.set(s, INVALID);
+            NU.set(s, INFINITY);
+        }
+        return i;
+    }
+
+    /**
+     * Appends a copy of operation i of another block, with every column.
+     *
+     * @return The index of the new operation.
+     */
+    int append(Block from, int i) {
+        int o = add(from.opcode(i), from.line(i));
+        for (int slot = 0; slot < SLOTS; slot++) {
+            setSR(o, slot, from.SR(i, slot));
+            setVR(o, slot, from.VR(i, slot));
+            setPR(o, slot, from.PR(i, slot));
+            setNU(o, slot, from.NU(i, slot));
+        }
+        return o;
+    }
+
+    /**
+     * Doubles the capacity of every column.
+     */
+    private void grow() {
+        capacity *= 2;
+        opcode = opcode.grow(capacity);
+        line = line.grow(capacity);
+        SR = SR.grow(capacity * SLOTS);
+        VR = VR.grow(capacity * SLOTS);
+        PR = PR.grow(capacity * SLOTS);
+        NU = NU.grow(capacity * SLOTS);
+    }
+
+    /**
+     * @return A copy of every column of the block, which can be renamed and
+     *         allocated without touching this one.
+     */
+    Block copy() {
+        Block copy = new Block(0);
+        copy.size = size;
+        copy.capacity = capacity;
+        copy.maxSR = maxSR;
+        copy.symbols = symbols;
+        copy.opcode = opcode.copy();
+        copy.line = line.copy();
+        copy.SR = SR.copy();
+        copy.VR = VR.copy();
+        copy.PR = PR.copy();
+        copy.NU = NU.copy();
+        return copy;
+    }
+
+    int size() { return size; }
+    int maxSR() { return maxSR; }
+    Category opcode(int i) { return CATEGORIES[opcode.get(i)]; }
+    int line(int i) { return line.get(i); }
+    int SR(int i, int slot) { return SR.get(i * SLOTS + slot); }
+    int VR(int i, int slot) { return VR.get(i * SLOTS + slot); }
+    int PR(int i, int slot) { return PR.get(i * SLOTS + slot); }
+    int NU(int i, int slot) { return NU.get(i * SLOTS + slot); }
+
+    void setSR(int i, int slot, int value) {
+        SR.set(i * SLOTS + slot, value);
+        if (isRegister(opcode(i), slot) && value > maxSR) maxSR = value;
+    }
+    void setVR(int i, int slot, int value) { VR.set(i * SLOTS + slot, value); }
+    void setPR(int i, int slot, int value) { PR.set(i * SLOTS + slot, value); }
+    void setNU(int i, int slot, int value) { NU.set(i * SLOTS + slot, value); }
+
+    /**
+     * @return true if the given slot of an operation with this opcode reads a register.
+     */
+    /**
+     * Stops a pass over a block whose thread has been interrupted, as AutoAllocator
+     * does to a strategy that misses its budget. The flag is only read at every
+     * INTERRUPT_INTERVAL-th operation, so the check costs nothing measurable.
+     *
+     * @param i The operation the pass is at.
+     * @throws CancellationException If the thread has been interrupted.
+     */
+    static void stopIfInterrupted(int i) {
+        if ((i & (INTERRUPT_INTERVAL - 1)) == 0 && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted at operation " + i);
+        }
+    }
+
+    static boolean isUse(Category op, int slot) {
+        switch (op) {
+            case LOAD:
+                return slot == 0;
+            case STORE:
+            case ADD:
+            case SUB:
+            case MULT:
+            case LSHIFT:
+            case RSHIFT:
+                return slot == 0 || slot == 1;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the given slot of an operation with this opcode writes a register.
+     */
+    static boolean isDef(Category op, int slot) {
+        return slot == 2 && op != STORE && op != OUTPUT && op != NOP;
+    }
+
+    /**
+     * @return true if the given slot of an operation with this opcode names a register.
+     */
+    static boolean isRegister(Category op, int slot) {
+        return isUse(op, slot) || isDef(op, slot);
+    }
+
+    /**
+     * @return true if slot 0 of an operation with this opcode holds a constant.
+     */
+    static boolean hasConstant(Category op) {
+        return op == LOADI || op == OUTPUT;
+    }
+
+    /**
+     * Returns the register named in a slot, taken from the chosen column.
+     */
+    int register(int i, int slot, int column) {
+        switch (column) {
+            case VR_COLUMN: return VR(i, slot);
+            case PR_COLUMN: return PR(i, slot);
+            default: return SR(i, slot);
+        }
+    }
+
+    /**
+     * Sets the symbol table whose register numbers are printed for the SR column,
+     * instead of the dense ids.
+     */
+    void nameRegisters(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns the register number to print for a slot.
+     */
+    private int printed(int i, int slot, int column) {
+        int r = register(i, slot, column);
+        return column == SR_COLUMN && symbols != null ? symbols.registerNumber(r) : r;
+    }
+
+    /**
+     * Appends operation i to the builder in ILOC syntax, naming registers with the
+     * chosen column (SR for the original code, VR once renamed, PR once allocated).
+     *
+     * @param out The builder to append to.
+     * @param i The index of the operation.
+     * @param column The register column to print: SR_COLUMN, VR_COLUMN or PR_COLUMN.
+     */
+    void appendOperation(StringBuilder out, int i, int column) {
+        Category op = opcode(i);
+        out.append(keyword(op));
+        switch (op) {
+            case NOP:
+                break;
+            case OUTPUT:
+                out.append(' ').append(SR(i, 0));
+                break;
+            case LOADI:
+                out.append(' ').append(SR(i, 0)).append(" => r").append(printed(i, 2, column));
+                break;
+            case LOAD:
+                out.append(" r").append(printed(i, 0, column)).append(" => r").append(printed(i, 2, column));
+                break;
+            case STORE:
+                out.append(" r").append(printed(i, 0, column)).append(" => r").append(printed(i, 1, column));
+                break;
+            default:
+                out.append(" r").append(printed(i, 0, column)).append(", r").append(printed(i, 1, column))
+                        .append(" => r").append(printed(i, 2, column));
+                break;
+        }
+    }
+
+    /**
+     * Prints the block to stdout, naming registers with the chosen column.
+     *
+     * @param column The register column to print: SR_COLUMN, VR_COLUMN or PR_COLUMN.
+     */
+    void print(int column) {
+        System.out.print(toString(column));
+    }
+
+    /**
+     * @return The block as ILOC text, one operation per line, with the registers of a column.
+     */
+    String toString(int column) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            appendOperation(out, i, column);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return The ILOC spelling of an opcode.
+     */
+    static String keyword(Category op) {
+        switch (op) {
+            case LOAD: return "load";
+            case LOADI: return "loadI";
+            case STORE: return "store";
+            case ADD: return "add";
+            case SUB: return "sub";
+            case MULT: return "mult";
+            case LSHIFT: return "lshift";
+            case RSHIFT: return "rshift";
+            case OUTPUT: return "output";
+            case NOP: return "nop";
+            default: throw new IllegalArgumentException("Not an opcode: " + op);
+        }
+    }
+
+    /**
+     * Visitor that appends each parsed operation to a block, filling in the SR column.
+     */
+    private static class Appender implements Operations.Visitor<Void> {
+        private final Block block;
+
+        Appender(Block block) {
+            this.block = block;
+        }
+
+        @Override
+        public Void visitZeroOp(Token op) {
+            block.add(op.category, op.line);
+            return null;
+        }
+
+        @Override
+        public Void visitOneOp(Token op, Token first) {
+            int i = block.add(op.category, op.line);
+            block.setSR(i, 0, first.value);
+            return null;
+        }
+
+        @Override
+        public Void visitTwoOp(Token op, Token first, Token second) {
+            int i = block.add(op.category, op.line);
+            block.setSR(i, 0, first.value);
+            // store writes its second register to the use slot; load and loadI define it.
+            block.setSR(i, op.category == STORE ? 1 : 2, second.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThreeOp(Token op, Token first, Token second, Token third) {
+            int i = block.add(op.category, op.line);
+            block.setSR(i, 0, first.value);
+            block.setSR(i, 1, second.value);
+            block.setSR(i, 2, third.value);
+            return null;
+        }
+    }
+}
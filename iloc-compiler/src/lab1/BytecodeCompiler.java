@@ -0,0 +1,398 @@
+package src.lab1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Runs a block by translating it into a JVM class, which the JIT then compiles like
+ * any other code. A small emitter writes the class file directly:
+ * <ul>
+ *   <li>the block is cut into chunks of OPS_PER_METHOD operations, each a static
+ *       method small enough for the JIT to accept;</li>
+ *   <li>the chunks are spread over classes of CHUNKS_PER_CLASS methods, each
+ *       with its own constant pool. A chunk adds at most POOL_ENTRIES_PER_CHUNK
+ *       entries, so no pool can outgrow the 65535 a class file allows however
+ *       long the block is;</li>
+ *   <li>within a chunk every register is a local variable; a chunk loads the
+ *       registers it reads before writing from an int[] on entry and stores the
+ *       registers it writes back on exit;</li>
+ *   <li>memory is an int[] of words, indexed by address / 4;</li>
+ *   <li>output writes into an int[] sink with one entry per output operation,
+ *       since each runs exactly once, and the sink is printed at the end.</li>
+ * </ul>
+ * A block has no branches, so the class needs no stack map frames.
+ *
+ * The static cycle estimate sums the latency of every operation (see Latency).
+ *
+ * @author Tyra Cole
+ *
+ */
+final class BytecodeCompiler {
+    // Operations per generated method; keeps methods under the JIT's size limit.
+    static final int OPS_PER_METHOD = 256;
+    // Largest count a class file can hold in two bytes.
+    private static final int MAX_COUNT = 0xFFFF;
+    // Most constant pool entries a chunk adds: its name, a constant for each
+    // register it loads on entry (two per operation) and stores on exit (one per
+    // operation), and the two constants an output pushes.
+    static final int POOL_ENTRIES_PER_CHUNK = 1 + 5 * OPS_PER_METHOD;
+    // Words of simulated memory.
+    static final int MEMORY_WORDS = 1 << 18;
+
+    private static final String CLASS_NAME = "src/lab1/CompiledBlock";
+    // Entries of every pool besides the chunks': "Code", the descriptor, and the
+    // names of this class and of Object with their class entries.
+    private static final int FIXED_POOL_ENTRIES = 6;
+    // Generated methods per class, as many as one pool has room for; entry 0 of
+    // a pool is unused.
+    static final int CHUNKS_PER_CLASS = (MAX_COUNT - 1 - FIXED_POOL_ENTRIES) / POOL_ENTRIES_PER_CHUNK;
+    private static final String DESCRIPTOR = "([I[I[I)V";
+    private static final int MEMORY = 0;
+    private static final int SINK = 1;
+    private static final int REGISTERS = 2;
+    private static final int FIRST_REGISTER_LOCAL = 3;
+
+    private final Block block;
+    private final int registers;
+
+    private int chunks;
+
+    /**
+     * @param block The block to run; registers are read from its SR column.
+     */
+    BytecodeCompiler(Block block) {
+        this.block = block;
+        this.registers = block.maxSR() + 1;
+    }
+
+    /**
+     * @return The class files of the compiled block; class c holds the chunks from
+     *         c * CHUNKS_PER_CLASS on, and is named by className(c).
+     */
+    byte[][] compile() throws IOException {
+        chunks = (block.size() + OPS_PER_METHOD - 1) / OPS_PER_METHOD;
+        byte[][] classes = new byte[(chunks + CHUNKS_PER_CLASS - 1) / CHUNKS_PER_CLASS][];
+        int outputs = 0;
+        for (int c = 0; c < classes.length; c++) {
+            ConstantPool pool = new ConstantPool();
+            int first = c * CHUNKS_PER_CLASS;
+            int end = Math.min(chunks, first + CHUNKS_PER_CLASS);
+            ByteArrayOutputStream methods = new ByteArrayOutputStream();
+            outputs = compileChunks(first, end, outputs, pool, new DataOutputStream(methods));
+            classes[c] = classFile(className(c), pool, end - first, methods);
+        }
+        return classes;
+    }
+
+    /**
+     * @return The name of the class that holds chunk class * CHUNKS_PER_CLASS.
+     */
+    private static String className(int c) {
+        return CLASS_NAME + c;
+    }
+
+    /**
+     * Writes the methods of chunks [first, end) and adds their constants to pool.
+     *
+     * @param outputs The sink entry of the first output in the chunks.
+     * @return The sink entry of the first output after them.
+     */
+    private int compileChunks(int first, int end, int outputs, ConstantPool pool, DataOutputStream methodsOut)
+            throws IOException {
+        int code = pool.utf8("Code");
+        int descriptor = pool.utf8(DESCRIPTOR);
+        for (int c = first; c < end; c++) {
+            int from = c * OPS_PER_METHOD;
+            int to = Math.min(block.size(), from + OPS_PER_METHOD);
+            Chunk chunk = new Chunk(from, to, outputs, pool);
+            outputs = chunk.outputs;
+            methodsOut.writeShort(0x0009);  // public static
+            methodsOut.writeShort(pool.utf8("c" + c));
+            methodsOut.writeShort(descriptor);
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(code);
+            methodsOut.writeInt(12 + chunk.code.size());
+            methodsOut.writeShort(4);  // max stack
+            methodsOut.writeShort(chunk.maxLocals);
+            methodsOut.writeInt(chunk.code.size());
+            chunk.code.writeTo(methodsOut);
+            methodsOut.writeShort(0);  // exception table
+            methodsOut.writeShort(0);  // attributes
+        }
+        return outputs;
+    }
+
+    /**
+     * @return A class file holding the given methods.
+     */
+    private static byte[] classFile(String name, ConstantPool pool, int methodCount, ByteArrayOutputStream methods)
+            throws IOException {
+        int thisClass = pool.classEntry(name);
+        int superClass = pool.classEntry("java/lang/Object");
+        if (methodCount > MAX_COUNT) throw new IllegalStateException(name + " has too many methods: " + methodCount);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        pool.writeTo(out, name);
+        out.writeShort(0x0031);  // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);  // interfaces
+        out.writeShort(0);  // fields
+        out.writeShort(methodCount);
+        methods.writeTo(out);
+        out.writeShort(0);  // attributes
+        return file.toByteArray();
+    }
+
+    /**
+     * The code of one generated method.
+     */
+    private final class Chunk {
+        final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        // The pool of the class the chunk goes into.
+        final ConstantPool pool;
+        // Local of each register used in the chunk, or 0 if unused.
+        final int[] local = new int[registers];
+        int maxLocals = FIRST_REGISTER_LOCAL;
+        int outputs;
+
+        Chunk(int from, int to, int outputs, ConstantPool pool) {
+            this.outputs = outputs;
+            this.pool = pool;
+            boolean[] written = new boolean[registers];
+            boolean[] exposed = new boolean[registers];
+            for (int i = from; i < to; i++) {
+                Category op = block.opcode(i);
+                for (int slot = 0; slot < 2; slot++) {
+                    if (!Block.isUse(op, slot)) continue;
+                    int r = block.SR(i, slot);
+                    if (!written[r]) exposed[r] = true;
+                    localOf(r);
+                }
+                if (Block.isDef(op, 2)) {
+                    written[block.SR(i, 2)] = true;
+                    localOf(block.SR(i, 2));
+                }
+            }
+
+            for (int r = 0; r < registers; r++) {
+                if (!exposed[r]) continue;
+                op(0x2C);  // aload_2
+                constant(r);
+                op(0x2E);  // iaload
+                local(0x36, local[r]);
+            }
+            for (int i = from; i < to; i++) operation(i);
+            for (int r = 0; r < registers; r++) {
+                if (!written[r]) continue;
+                op(0x2C);  // aload_2
+                constant(r);
+                local(0x15, local[r]);
+                op(0x4F);  // iastore
+            }
+            op(0xB1);  // return
+        }
+
+        private void localOf(int r) {
+            if (local[r] == 0) local[r] = maxLocals++;
+        }
+
+        private void operation(int i) {
+            Category op = block.opcode(i);
+            switch (op) {
+                case NOP:
+                    break;
+                case LOADI:
+                    constant(block.SR(i, 0));
+                    local(0x36, local[block.SR(i, 2)]);
+                    break;
+                case LOAD:
+                    op(0x2A);  // aload_0
+                    word(block.SR(i, 0));
+                    op(0x2E);  // iaload
+                    local(0x36, local[block.SR(i, 2)]);
+                    break;
+                case STORE:
+                    op(0x2A);  // aload_0
+                    word(block.SR(i, 1));
+                    local(0x15, local[block.SR(i, 0)]);
+                    op(0x4F);  // iastore
+                    break;
+                case OUTPUT:
+                    op(0x2B);  // aload_1
+                    constant(outputs++);
+                    op(0x2A);  // aload_0
+                    constant(block.SR(i, 0) >> 2);
+                    op(0x2E);  // iaload
+                    op(0x4F);  // iastore
+                    break;
+                default:
+                    local(0x15, local[block.SR(i, 0)]);
+                    local(0x15, local[block.SR(i, 1)]);
+                    op(arithmetic(op));
+                    local(0x36, local[block.SR(i, 2)]);
+                    break;
+            }
+        }
+
+        /**
+         * Pushes the word index of the address held in register r.
+         */
+        private void word(int r) {
+            local(0x15, local[r]);
+            op(0x05);  // iconst_2
+            op(0x7A);  // ishr
+        }
+
+        private void constant(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value);  // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10);  // bipush
+                op(value & 0xFF);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11);  // sipush
+                op((value >> 8) & 0xFF);
+                op(value & 0xFF);
+            } else {
+                int index = pool.integer(value);
+                op(0x13);  // ldc_w
+                op(index >> 8);
+                op(index & 0xFF);
+            }
+        }
+
+        /**
+         * Emits iload or istore of a local, widened if its index needs two bytes.
+         */
+        private void local(int opcode, int index) {
+            if (index > 0xFF) {
+                op(0xC4);  // wide
+                op(opcode);
+                op(index >> 8);
+            } else {
+                op(opcode);
+            }
+            op(index & 0xFF);
+        }
+
+        private void op(int b) {
+            code.write(b);
+        }
+    }
+
+    private static int arithmetic(Category op) {
+        switch (op) {
+            case ADD: return 0x60;
+            case SUB: return 0x64;
+            case MULT: return 0x68;
+            case LSHIFT: return 0x78;
+            case RSHIFT: return 0x7A;
+            default: throw new IllegalArgumentException("Not arithmetic: " + op);
+        }
+    }
+
+    /**
+     * The constant pool of one class file, with each string and integer once.
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        // Index of the next entry; entry 0 is unused.
+        private int count = 1;
+        private final Map<String, Integer> utf8 = new HashMap<>();
+        private final Map<Integer, Integer> integers = new HashMap<>();
+
+        int utf8(String s) {
+            Integer index = utf8.get(s);
+            if (index != null) return index;
+            try {
+                out.writeByte(1);
+                out.writeUTF(s);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            utf8.put(s, count);
+            return count++;
+        }
+
+        int integer(int value) {
+            Integer index = integers.get(value);
+            if (index != null) return index;
+            try {
+                out.writeByte(3);
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            integers.put(value, count);
+            return count++;
+        }
+
+        int classEntry(String name) throws IOException {
+            int nameIndex = utf8(name);
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+            return count++;
+        }
+
+        /**
+         * Writes the count and the entries, refusing a pool too large for a class file.
+         */
+        void writeTo(DataOutputStream file, String name) throws IOException {
+            if (count > MAX_COUNT) throw new IllegalStateException(name + " has too many constants: " + (count - 1));
+            file.writeShort(count);
+            bytes.writeTo(file);
+        }
+    }
+
+    /**
+     * Loads the classes of a compiled block into their own class loader.
+     */
+    private static final class Loader extends ClassLoader {
+        Loader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Compiles and runs the block.
+     *
+     * @return The values printed by the output operations, in order.
+     */
+    int[] run() throws Throwable {
+        byte[][] classes = compile();
+        Loader loader = new Loader();
+        Class<?>[] compiled = new Class<?>[classes.length];
+        for (int c = 0; c < classes.length; c++) compiled[c] = loader.define(className(c), classes[c]);
+        MethodType type = MethodType.methodType(void.class, int[].class, int[].class, int[].class);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        int outputs = 0;
+        for (int i = 0; i < block.size(); i++) {
+            if (block.opcode(i) == OUTPUT) outputs++;
+        }
+        int[] memory = new int[MEMORY_WORDS];
+        int[] sink = new int[outputs];
+        int[] registerFile = new int[Math.max(registers, 1)];
+        for (int c = 0; c < chunks; c++) {
+            MethodHandle chunk = lookup.findStatic(compiled[c / CHUNKS_PER_CLASS], "c" + c, type);
+            chunk.invokeExact(memory, sink, registerFile);
+        }
+        return sink;
+    }
+}
@@ -10,5 +10,8 @@ public enum Category {
     REGISTER, NUMBER,
     LOAD, LOADI, STORE, LSHIFT, RSHIFT,
     ADD, MULT, SUB, OUTPUT, NOP,
-    ERROR, EOF
+    ERROR, EOF,
+    // A name followed by ':', which starts a new block. Last, so that the
+    // ordinals of the opcodes kept in incremental state files do not move.
+    LABEL
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package src.lab1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * A column of ints in a Block. Blocks keep their columns on the Java heap unless
+ * asked otherwise; a block of a hundred million operations needs several gigabytes
+ * of columns, which can instead be kept off the heap, out of the collector's way:
+ * <ul>
+ *   <li>in direct memory, or</li>
+ *   <li>in memory-mapped files, so that the operating system can page a block
+ *       larger than memory in and out.</li>
+ * </ul>
+ * An off-heap column is a list of equal chunks, so it grows by adding a chunk
+ * rather than copying, and no chunk comes near the 2 GB limit of a buffer.
+ *
+ * A storage is a function from a length to a new column of that many zeros.
+ *
+ * @author Tyra Cole
+ *
+ */
+abstract class Column {
+    // Storage on the Java heap, in an int[].
+    static final IntFunction<Column> HEAP = Heap::new;
+
+    // Bounds on the number of ints in a chunk of an off-heap column, as powers of two.
+    private static final int MIN_CHUNK_SHIFT = 12;
+    private static final int MAX_CHUNK_SHIFT = 24;
+
+    abstract int get(int i);
+
+    abstract void set(int i, int value);
+
+    abstract int length();
+
+    /**
+     * @return A column with at least length entries, beginning with the entries of
+     *         this one; this one may no longer be used.
+     */
+    abstract Column grow(int length);
+
+    /**
+     * @return A column in the same storage with the same entries.
+     */
+    abstract Column copy();
+
+    /**
+     * @return The storage this column was made by.
+     */
+    abstract IntFunction<Column> storage();
+
+    /**
+     * @return A heap column over the given ints, which says it was made by storage.
+     */
+    static Column heap(int[] values, IntFunction<Column> storage) {
+        Heap column = new Heap(0);
+        column.values = values;
+        column.storage = storage;
+        return column;
+    }
+
+    /**
+     * @return Storage in direct memory.
+     */
+    static IntFunction<Column> direct() {
+        return length -> new OffHeap(length, null);
+    }
+
+    /**
+     * @param directory Where the files are made. Each is deleted as soon as it is
+     *                  mapped, so nothing is left behind.
+     * @return Storage in memory-mapped files.
+     */
+    static IntFunction<Column> mapped(Path directory) {
+        return length -> new OffHeap(length, directory);
+    }
+
+    private static final class Heap extends Column {
+        private int[] values;
+        private IntFunction<Column> storage = HEAP;
+
+        Heap(int length) {
+            values = new int[length];
+        }
+
+        @Override int get(int i) { return values[i]; }
+        @Override void set(int i, int value) { values[i] = value; }
+        @Override int length() { return values.length; }
+
+        @Override
+        Column grow(int length) {
+            values = Arrays.copyOf(values, length);
+            return this;
+        }
+
+        @Override
+        Column copy() {
+            Heap copy = new Heap(0);
+            copy.values = values.clone();
+            copy.storage = storage;
+            return copy;
+        }
+
+        @Override
+        IntFunction<Column> storage() {
+            return storage;
+        }
+    }
+
+    private static final class OffHeap extends Column {
+        private final Path directory;
+        private final int shift;
+        private final int mask;
+        private ByteBuffer[] chunks = new ByteBuffer[0];
+
+        /**
+         * @param directory Where to map the chunks, or null for direct memory.
+         */
+        OffHeap(int length, Path directory) {
+            this(length, directory, Math.max(MIN_CHUNK_SHIFT, Math.min(MAX_CHUNK_SHIFT,
+                    32 - Integer.numberOfLeadingZeros(Math.max(length - 1, 1)))));
+        }
+
+        /**
+         * @param shift The number of ints in a chunk, as a power of two.
+         */
+        private OffHeap(int length, Path directory, int shift) {
+            this.directory = directory;
+            this.shift = shift;
+            this.mask = (1 << shift) - 1;
+            grow(length);
+        }
+
+        @Override int get(int i) { return chunks[i >>> shift].getInt((i & mask) << 2); }
+        @Override void set(int i, int value) { chunks[i >>> shift].putInt((i & mask) << 2, value); }
+        @Override int length() { return chunks.length << shift; }
+
+        @Override
+        Column grow(int length) {
+            int count = (int) (((long) length + mask) >>> shift);
+            if (count <= chunks.length) return this;
+            int old = chunks.length;
+            chunks = Arrays.copyOf(chunks, count);
+            for (int c = old; c < count; c++) chunks[c] = chunk(Integer.BYTES << shift);
+            return this;
+        }
+
+        private ByteBuffer chunk(int bytes) {
+            if (directory == null) return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            try {
+                Path file = Files.createTempFile(directory, "block", ".column");
+                ByteBuffer chunk;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    chunk = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                }
+                // The mapping outlives the file's name.
+                Files.delete(file);
+                return chunk.order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        Column copy() {
+            OffHeap copy = new OffHeap(length(), directory, shift);
+            for (int c = 0; c < chunks.length; c++) {
+                copy.chunks[c].put(0, chunks[c], 0, chunks[c].capacity());
+            }
+            return copy;
+        }
+
+        @Override
+        IntFunction<Column> storage() {
+            return length -> new OffHeap(length, directory);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package src.lab1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * The scratch memory of one worker thread: the renamer's maps, the allocator's
+ * tables and the columns of the allocated blocks. Allocating many files, each job
+ * would otherwise make all of these anew and leave them to the young generation.
+ * A worker instead takes its thread's context before a block and hands it back
+ * after, and the next block gets the same arrays again, cleared.
+ *
+ * The context is an arena: buffers are handed out in the order they are asked
+ * for, and release rewinds to the first. A job asks in the same order as the one
+ * before it, so each request usually finds a buffer that is long enough; one that
+ * is too short is replaced by a longer one. So that one giant block does not pin
+ * its memory for the rest of the run, on release
+ * <ul>
+ *   <li>a buffer longer than MAX_RETAINED ints is dropped, and</li>
+ *   <li>a buffer more than SHRINK_FACTOR times longer than what was asked of it is
+ *       dropped once that has held for SHRINK_AFTER jobs in a row.</li>
+ * </ul>
+ *
+ * Nothing handed out may be used after release. NONE shares nothing: it makes new
+ * arrays every time and keeps allocated blocks in the storage of their input, as
+ * a renamer or allocator without a context always has.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class CompilationContext {
+    static final CompilationContext NONE = new CompilationContext(false);
+
+    // Longest buffer, in ints, kept from one job to the next.
+    static final int MAX_RETAINED = 1 << 22;
+    static final int SHRINK_FACTOR = 4;
+    static final int SHRINK_AFTER = 8;
+
+    private static final ThreadLocal<CompilationContext> CURRENT =
+            ThreadLocal.withInitial(() -> new CompilationContext(true));
+
+    private final boolean pooled;
+    private boolean busy = false;
+
+    private final Arena<int[]> ints = new Arena<>();
+    private final Arena<boolean[]> booleans = new Arena<>();
+    private final Arena<int[]> columns = new Arena<>();
+    private final IntFunction<Column> storage = this::column;
+
+    private CompilationContext(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * @return The calling thread's context, or NONE if the thread is already using
+     *         its own; hand it back with release.
+     */
+    static CompilationContext acquire() {
+        CompilationContext context = CURRENT.get();
+        if (context.busy) return NONE;
+        context.busy = true;
+        return context;
+    }
+
+    /**
+     * Takes back everything handed out since acquire.
+     */
+    void release() {
+        if (!pooled) return;
+        ints.rewind(a -> a.length);
+        booleans.rewind(a -> a.length);
+        columns.rewind(a -> a.length);
+        busy = false;
+    }
+
+    /**
+     * @return An array of at least length ints, the first length of them set to fill.
+     */
+    int[] ints(int length, int fill) {
+        int[] array = pooled ? ints.take(length, int[]::new, a -> a.length, null) : new int[length];
+        if (pooled || fill != 0) Arrays.fill(array, 0, length, fill);
+        return array;
+    }
+
+    /**
+     * @return An array of at least length booleans, the first length of them false.
+     */
+    boolean[] booleans(int length) {
+        if (!pooled) return new boolean[length];
+        boolean[] array = booleans.take(length, boolean[]::new, a -> a.length, null);
+        Arrays.fill(array, 0, length, false);
+        return array;
+    }
+
+    /**
+     * @return A copy of an array this context handed out, at least length ints
+     *         long; the old array may no longer be used.
+     */
+    int[] grow(int[] array, int length) {
+        return pooled ? ints.replace(array, Arrays.copyOf(array, length)) : Arrays.copyOf(array, length);
+    }
+
+    private Column column(int length) {
+        return Column.heap(columns.take(length, int[]::new, a -> a.length, a -> Arrays.fill(a, 0, length, 0)), storage);
+    }
+
+    /**
+     * @return An empty block for the allocated code of a block: on the heap, in
+     *         columns of this context, or, for NONE, in the storage of the block.
+     */
+    Block emptyLike(Block block, int capacity) {
+        return pooled ? new Block(capacity, storage) : block.emptyLike(capacity);
+    }
+
+    /**
+     * Buffers of one kind, handed out in order.
+     */
+    private static final class Arena<A> {
+        private final List<A> buffers = new ArrayList<>();
+        // Per buffer, the most asked of it since the last rewind, and the number
+        // of rewinds in a row it has been much longer than that.
+        private int[] asked = new int[8];
+        private int[] idle = new int[8];
+        private int next = 0;
+
+        /**
+         * @param clear Clears a buffer that is handed out again, or null.
+         */
+        A take(int length, IntFunction<A> make, ToIntFunction<A> lengthOf, Consumer<A> clear) {
+            int b = next++;
+            if (b == buffers.size()) {
+                buffers.add(null);
+                if (b == asked.length) {
+                    asked = Arrays.copyOf(asked, b * 2);
+                    idle = Arrays.copyOf(idle, b * 2);
+                }
+            }
+            A array = buffers.get(b);
+            if (array == null || lengthOf.applyAsInt(array) < length) {
+                // Grow by half again, so a slowly growing job does not replace it every time.
+                array = make.apply(Math.max(length, Math.min(length + (length >> 1), MAX_RETAINED)));
+                buffers.set(b, array);
+            } else if (clear != null) {
+                clear.accept(array);
+            }
+            asked[b] = Math.max(asked[b], length);
+            return array;
+        }
+
+        A replace(A old, A array) {
+            for (int b = next - 1; b >= 0; b--) {
+                if (buffers.get(b) == old) {
+                    buffers.set(b, array);
+                    break;
+                }
+            }
+            return array;
+        }
+
+        void rewind(ToIntFunction<A> lengthOf) {
+            for (int b = 0; b < buffers.size(); b++) {
+                A array = buffers.get(b);
+                if (array == null) continue;
+                int length = lengthOf.applyAsInt(array);
+                idle[b] = (long) length > (long) asked[b] * SHRINK_FACTOR ? idle[b] + 1 : 0;
+                if (length > MAX_RETAINED || idle[b] >= SHRINK_AFTER) {
+                    buffers.set(b, null);
+                    idle[b] = 0;
+                }
+                asked[b] = 0;
+            }
+            next = 0;
+        }
+    }
+}
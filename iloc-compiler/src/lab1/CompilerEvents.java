@@ -0,0 +1,267 @@
+package src.lab1;
+
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events for the phases of the compiler, so that a recording can
+ * put a slow compile next to the collections and CPU load around it. Each phase is
+ * a timed event; a block's spill code is an instant event after it is allocated.
+ *
+ * Loading the event classes loads Flight Recorder itself, some hundred classes,
+ * which would more than double the startup of a run on a small file. So no event
+ * is made unless enabled is set, which Main does only for --jfr; this holder
+ * class touches no jdk.jfr type until then. Each phase has a begin method, which
+ * returns null unless events are enabled, and a commit method, which takes that
+ * null and fills in the fields only for events that will be committed:
+ * <pre>
+ *     CompilerEvents.ScanEvent scan = CompilerEvents.beginScan();
+ *     ... scan ...
+ *     CompilerEvents.commitScan(scan, filename, tokens.size());
+ * </pre>
+ * Callers hold the events by their own types, never as Event, so that verifying
+ * them loads nothing from jdk.jfr.
+ * The events are in the "ILOC" category, named iloc.Scan, iloc.Parse and so on.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class CompilerEvents {
+    // Whether events are made at all; set before any compiling starts.
+    static boolean enabled = false;
+
+    private CompilerEvents() {
+    }
+
+    static ScanEvent beginScan() {
+        if (!enabled) return null;
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitScan(ScanEvent event, String file, int tokens) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.tokens = tokens;
+        event.commit();
+    }
+
+    static ParseEvent beginParse() {
+        if (!enabled) return null;
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitParse(ParseEvent event, String file, int operations) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.operations = operations;
+        event.commit();
+    }
+
+    static ScheduleEvent beginSchedule() {
+        if (!enabled) return null;
+        ScheduleEvent event = new ScheduleEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitSchedule(ScheduleEvent event, String file, String block, int operations, boolean reordered) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.block = block;
+        event.operations = operations;
+        event.reordered = reordered;
+        event.commit();
+    }
+
+    static RenameEvent beginRename() {
+        if (!enabled) return null;
+        RenameEvent event = new RenameEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitRename(RenameEvent event, String file, String block, int operations, int maxLive) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.block = block;
+        event.operations = operations;
+        event.maxLive = maxLive;
+        event.commit();
+    }
+
+    static AllocateEvent beginAllocate() {
+        if (!enabled) return null;
+        AllocateEvent event = new AllocateEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitAllocate(AllocateEvent event, String file, String block, String allocator, int k,
+            int operations, int allocatedOperations) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.block = block;
+        event.allocator = allocator;
+        event.k = k;
+        event.operations = operations;
+        event.allocatedOperations = allocatedOperations;
+        event.commit();
+    }
+
+    /**
+     * Records the spill code of a block, which is an instant event, so it has no begin.
+     *
+     * @param stats The block's stats, with its k, stores, reloads,
+     *              rematerializations and spillBytes.
+     */
+    static void commitSpill(String file, String block, Stats stats) {
+        if (!enabled) return;
+        SpillEvent event = new SpillEvent();
+        if (!event.shouldCommit()) return;
+        event.file = file;
+        event.block = block;
+        event.k = (int) stats.get("k");
+        event.stores = (int) stats.get("stores");
+        event.reloads = (int) stats.get("reloads");
+        event.rematerializations = (int) stats.get("rematerializations");
+        event.spillBytes = (int) stats.get("spillBytes");
+        event.commit();
+    }
+
+    static EmitEvent beginEmit() {
+        if (!enabled) return null;
+        EmitEvent event = new EmitEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitEmit(EmitEvent event, String file, String block, int operations, int characters) {
+        if (event == null || !event.shouldCommit()) return;
+        event.file = file;
+        event.block = block;
+        event.operations = operations;
+        event.characters = characters;
+        event.commit();
+    }
+
+    @Name("iloc.Scan")
+    @Label("Scan")
+    @jdk.jfr.Category("ILOC")
+    @Description("Scanning a file into tokens")
+    @StackTrace(false)
+    static final class ScanEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("iloc.Parse")
+    @Label("Parse")
+    @jdk.jfr.Category("ILOC")
+    @Description("Parsing the tokens of a file into operations")
+    @StackTrace(false)
+    static final class ParseEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Operations")
+        int operations;
+    }
+
+    @Name("iloc.Schedule")
+    @Label("Schedule")
+    @jdk.jfr.Category("ILOC")
+    @Description("Reordering a block to lower its register pressure")
+    @StackTrace(false)
+    static final class ScheduleEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Block")
+        String block;
+        @Label("Operations")
+        int operations;
+        @Label("Reordered")
+        boolean reordered;
+    }
+
+    @Name("iloc.Rename")
+    @Label("Rename")
+    @jdk.jfr.Category("ILOC")
+    @Description("Renaming a block's source registers to live ranges")
+    @StackTrace(false)
+    static final class RenameEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Block")
+        String block;
+        @Label("Operations")
+        int operations;
+        @Label("MaxLive")
+        int maxLive;
+    }
+
+    @Name("iloc.Allocate")
+    @Label("Allocate")
+    @jdk.jfr.Category("ILOC")
+    @Description("Allocating a block to physical registers, including renaming when allocators are compared")
+    @StackTrace(false)
+    static final class AllocateEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Block")
+        String block;
+        @Label("Allocator")
+        String allocator;
+        @Label("Registers")
+        int k;
+        @Label("Operations")
+        int operations;
+        @Label("Allocated Operations")
+        int allocatedOperations;
+    }
+
+    @Name("iloc.Spill")
+    @Label("Spill")
+    @jdk.jfr.Category("ILOC")
+    @Description("The spill code inserted into a block")
+    @StackTrace(false)
+    static final class SpillEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Block")
+        String block;
+        @Label("Registers")
+        int k;
+        @Label("Stores")
+        int stores;
+        @Label("Reloads")
+        int reloads;
+        @Label("Rematerializations")
+        int rematerializations;
+        @Label("Spill Bytes")
+        int spillBytes;
+    }
+
+    @Name("iloc.Emit")
+    @Label("Emit")
+    @jdk.jfr.Category("ILOC")
+    @Description("Printing a block's allocated code")
+    @StackTrace(false)
+    static final class EmitEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Block")
+        String block;
+        @Label("Operations")
+        int operations;
+        @Label("Characters")
+        int characters;
+    }
+}
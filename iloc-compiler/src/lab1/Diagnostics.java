@@ -0,0 +1,191 @@
+package src.lab1;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Collects the errors found by the scanner and the parser. An error is recorded as
+ * a code, a line, the index of the token where it was found and a reference to
+ * whatever was found there; its message is only rendered when the errors are
+ * printed, all at once, at the end of the run. Past the limit, errors are counted
+ * but not kept.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Diagnostics {
+    static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * The errors the front end can report. The text is followed by what was found,
+     * if the code shows it.
+     */
+    enum Code {
+        UNEXPECTED_CHARACTER("Unexpected character", false),
+        EXPECTED_GREATER("Expected > but found ", true),
+        REGISTER_EXPECTED("Register expected", false),
+        NUMBER_OUT_OF_RANGE("Number out of range", false),
+        UNEXPECTED_TOKEN("Unexpected token", false),
+        EXPECTED_SOURCE_REGISTER("Expected source register but found ", true),
+        EXPECTED_SOURCE_REGISTER_1("Expected source register 1 but found ", true),
+        EXPECTED_SOURCE_REGISTER_2("Expected source register 2 but found ", true),
+        EXPECTED_DESTINATION_REGISTER("Expected destination register but found ", true),
+        EXPECTED_NUMBER("Expected number but found ", true),
+        EXPECTED_COMMA("Expected a comma after register name", false),
+        EXPECTED_ARROW_AFTER_REGISTER("Expected => after register name", false),
+        EXPECTED_ARROW_AFTER_NUMBER("Expected => after number value", false);
+
+        final String text;
+        final boolean showsFound;
+
+        Code(String text, boolean showsFound) {
+            this.text = text;
+            this.showsFound = showsFound;
+        }
+    }
+
+    private static final Code[] CODES = Code.values();
+
+    private final int limit;
+    private int count = 0;
+    private int[] codes = new int[8];
+    private int[] lines = new int[8];
+    private int[] tokenIndex = new int[8];
+    // The character found, for scanner errors.
+    private char[] chars = new char[8];
+    // The token found and the token that starts the operation, for parser errors.
+    private Token[] found = new Token[8];
+    private Token[] context = new Token[8];
+
+    Diagnostics() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit The number of errors to keep; later ones are only counted.
+     */
+    Diagnostics(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Records an error found by the scanner.
+     *
+     * @param code What went wrong.
+     * @param line The line being scanned.
+     * @param token The index of the next token.
+     * @param c The character found.
+     */
+    void scanError(Code code, int line, int token, char c) {
+        int e = record(code, line, token);
+        if (e >= 0) chars[e] = c;
+    }
+
+    /**
+     * Records an error found by the parser.
+     *
+     * @param code What went wrong.
+     * @param operation The first token of the operation being parsed.
+     * @param token The index of the token found.
+     * @param at The token found.
+     */
+    void parseError(Code code, Token operation, int token, Token at) {
+        int e = record(code, operation.line, token);
+        if (e >= 0) {
+            context[e] = operation;
+            found[e] = at;
+        }
+    }
+
+    /**
+     * Counts an error and, below the limit, keeps it.
+     *
+     * @return The slot the error was kept in, or -1.
+     */
+    private int record(Code code, int line, int token) {
+        int e = count++;
+        if (e >= limit) return -1;
+        if (e == codes.length) {
+            int capacity = e * 2;
+            codes = Arrays.copyOf(codes, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            tokenIndex = Arrays.copyOf(tokenIndex, capacity);
+            chars = Arrays.copyOf(chars, capacity);
+            found = Arrays.copyOf(found, capacity);
+            context = Arrays.copyOf(context, capacity);
+        }
+        codes[e] = code.ordinal();
+        lines[e] = line;
+        tokenIndex[e] = token;
+        return e;
+    }
+
+    /**
+     * Records the errors of another collection after those already here, as if
+     * they had been found now, and empties it.
+     */
+    void append(Diagnostics other) {
+        int kept = Math.min(other.count, other.limit);
+        for (int e = 0; e < kept; e++) {
+            int slot = record(other.code(e), other.lines[e], other.tokenIndex[e]);
+            if (slot < 0) continue;
+            chars[slot] = other.chars[e];
+            found[slot] = other.found[e];
+            context[slot] = other.context[e];
+        }
+        count += other.count - kept;
+        other.count = 0;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    boolean hasErrors() {
+        return count > 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    Code code(int e) { return CODES[codes[e]]; }
+    int line(int e) { return lines[e]; }
+    int tokenIndex(int e) { return tokenIndex[e]; }
+
+    /**
+     * Renders the message of a kept error, without its line or context.
+     */
+    String message(int e) {
+        Code code = code(e);
+        if (!code.showsFound) return code.text;
+        return context[e] == null ? code.text + chars[e] : code.text + found[e].lexeme;
+    }
+
+    /**
+     * Prints every kept error, in the order found, with one write.
+     *
+     * @param out The stream to print to, normally System.err.
+     */
+    void flush(PrintStream out) {
+        if (count == 0) return;
+        StringBuilder text = new StringBuilder();
+        int kept = Math.min(count, limit);
+        for (int e = 0; e < kept; e++) {
+            text.append("ERROR ").append(lines[e]).append(": ").append(message(e)).append(' ');
+            Token operation = context[e];
+            if (operation != null) {
+                if (operation.category == Category.EOF) {
+                    text.append(" at end");
+                } else {
+                    text.append(" at '").append(operation.lexeme).append('\'');
+                }
+            }
+            text.append('\n');
+        }
+        if (count > limit) text.append(count - limit).append(" more errors not shown\n");
+        out.print(text);
+        out.flush();
+        count = 0;
+    }
+}
@@ -0,0 +1,241 @@
+package src.lab1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * A front end that scans and parses in one pass, with no list of tokens between
+ * the two. The grammar is fixed by the opcode, so once the opcode is known each
+ * operand is pulled from the Scanner in turn (see Scanner.nextToken) and checked
+ * against the shape, and the operation goes straight into a Block: no Token and
+ * no Operations is made for valid input, only for labels and errors.
+ *
+ * The rules are those of Scanner and Parser, down to error recovery: a parse error
+ * skips the rest of the operation's line, and the operands still expected are then
+ * checked against the tokens of the next line, as Parser does. The messages are
+ * the same too, in the same order: the Scanner reports as it goes, and the parse
+ * errors are held back until the end, since scanning the whole source first puts
+ * every scan error before every parse error.
+ *
+ * The operations before the first label, if any, and those after each label form
+ * the blocks of a Program (see Program(FusedParser, String)).
+ *
+ * @author Tyra Cole
+ *
+ */
+final class FusedParser {
+    // An operand that did not match.
+    private static final int MISSING = -1;
+    // Characters of source per operation, to size the first block.
+    private static final int CHARACTERS_PER_OPERATION = 16;
+
+    private final Scanner scanner;
+    private final Diagnostics diagnostics;
+    private final Diagnostics parseErrors;
+    private final IntFunction<Column> storage;
+    private final int firstCapacity;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Token> labels = new ArrayList<>();
+    private Block block;
+    private int operations = 0;
+    private boolean hasError = false;
+
+    // The opcode that starts the operation being parsed, and its line.
+    private Category opcode;
+    private int opcodeLine;
+
+    /**
+     * @param source The text to parse.
+     * @param diagnostics Where errors are reported.
+     */
+    FusedParser(String source, Diagnostics diagnostics) {
+        this(source, diagnostics, Column.HEAP);
+    }
+
+    /**
+     * @param storage Makes the columns of the blocks (see Column).
+     */
+    FusedParser(String source, Diagnostics diagnostics, IntFunction<Column> storage) {
+        this.scanner = new Scanner(source, diagnostics);
+        this.diagnostics = diagnostics;
+        this.parseErrors = new Diagnostics(diagnostics.limit());
+        this.storage = storage;
+        this.firstCapacity = source.length() / CHARACTERS_PER_OPERATION;
+    }
+
+    boolean hasError() {
+        return hasError;
+    }
+
+    /**
+     * @return The symbol table holding the registers and constants scanned.
+     */
+    SymbolTable symbols() {
+        return scanner.symbols();
+    }
+
+    /**
+     * @return The blocks, after parse: the operations before the first label, which
+     *         may be none, then those after each label in turn.
+     */
+    List<Block> blocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The labels found, in order; label i starts block i + 1.
+     */
+    List<Token> labels() {
+        return labels;
+    }
+
+    /**
+     * @return The number of operations parsed.
+     */
+    int operations() {
+        return operations;
+    }
+
+    /**
+     * Scans and parses the whole source into blocks.
+     */
+    void parse() {
+        block = new Block(firstCapacity, storage);
+        blocks.add(block);
+        for (Category category = scanner.nextToken(); category != EOF; category = scanner.category()) {
+            opcode = category;
+            opcodeLine = scanner.tokenLine();
+            switch (category) {
+                case ADD:
+                case SUB:
+                case MULT:
+                case RSHIFT:
+                case LSHIFT:
+                    arithmetic();
+                    break;
+                case LOAD:
+                case STORE:
+                    loadStore();
+                    break;
+                case LOADI:
+                    loadI();
+                    break;
+                case OUTPUT:
+                    output();
+                    break;
+                case NOP:
+                    scanner.nextToken();
+                    add();
+                    break;
+                case LABEL:
+                    labels.add(scanner.token());
+                    scanner.nextToken();
+                    block = new Block(0, storage);
+                    blocks.add(block);
+                    break;
+                default:
+                    reportError(Diagnostics.Code.UNEXPECTED_TOKEN, scanner.token());
+                    break;
+            }
+        }
+        diagnostics.append(parseErrors);
+    }
+
+    /**
+     * OPCODE REGISTER, REGISTER => REGISTER
+     */
+    private void arithmetic() {
+        scanner.nextToken();
+        int first = expect(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER_1);
+        expect(COMMA, Diagnostics.Code.EXPECTED_COMMA);
+        int second = expect(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER_2);
+        expect(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_REGISTER);
+        int third = expect(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
+        if (first == MISSING || second == MISSING || third == MISSING) return;
+        int i = add();
+        block.setSR(i, 0, first);
+        block.setSR(i, 1, second);
+        block.setSR(i, 2, third);
+    }
+
+    /**
+     * OPCODE REGISTER => REGISTER
+     */
+    private void loadStore() {
+        scanner.nextToken();
+        int first = expect(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER);
+        expect(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_REGISTER);
+        int second = expect(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
+        if (first == MISSING || second == MISSING) return;
+        int i = add();
+        block.setSR(i, 0, first);
+        // store writes its second register to the use slot; load defines it.
+        block.setSR(i, opcode == STORE ? 1 : 2, second);
+    }
+
+    /**
+     * loadI NUMBER => REGISTER
+     */
+    private void loadI() {
+        scanner.nextToken();
+        int constant = expect(NUMBER, Diagnostics.Code.EXPECTED_NUMBER);
+        expect(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_NUMBER);
+        int register = expect(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
+        if (constant == MISSING || register == MISSING) return;
+        int i = add();
+        block.setSR(i, 0, constant);
+        block.setSR(i, 2, register);
+    }
+
+    /**
+     * output NUMBER
+     */
+    private void output() {
+        scanner.nextToken();
+        int constant = expect(NUMBER, Diagnostics.Code.EXPECTED_NUMBER);
+        if (constant == MISSING) return;
+        block.setSR(add(), 0, constant);
+    }
+
+    /**
+     * Appends the operation being parsed to the current block.
+     *
+     * @return Its index in the block.
+     */
+    private int add() {
+        operations++;
+        return block.add(opcode, opcodeLine);
+    }
+
+    /**
+     * Consumes the next token if it has the expected category, and otherwise
+     * reports an error and skips the rest of the operation's line.
+     *
+     * @return The token's value (a register's id, a number's value), or MISSING.
+     */
+    private int expect(Category category, Diagnostics.Code code) {
+        if (scanner.category() == category) {
+            int value = scanner.value();
+            scanner.nextToken();
+            return value;
+        }
+        reportError(code, new Token(opcode, Block.keyword(opcode), opcodeLine));
+        return MISSING;
+    }
+
+    /**
+     * Reports a parse error at the current token and skips the tokens left on the
+     * line where the operation began.
+     *
+     * @param operation The token that starts the operation.
+     */
+    private void reportError(Diagnostics.Code code, Token operation) {
+        hasError = true;
+        parseErrors.parseError(code, operation, scanner.tokenIndex(), scanner.token());
+        while (scanner.category() != EOF && scanner.tokenLine() == operation.line) scanner.nextToken();
+    }
+}
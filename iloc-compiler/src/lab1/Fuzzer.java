@@ -0,0 +1,437 @@
+package src.lab1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Property-based fuzzing of the front end and the allocators. Each case is a
+ * random block, generated from the grammar the Parser accepts, and checks one of
+ * two properties:
+ * <ul>
+ *   <li>valid input: the front end reports no errors, and for a random k,
+ *       allocator and peephole setting, the allocated code uses only registers
+ *       below k and prints the same values as the original under simulation;</li>
+ *   <li>invalid input (some lines broken in ways the grammar cannot accept):
+ *       Scanner and Parser do not throw, and they report errors on exactly the
+ *       broken lines.</li>
+ * </ul>
+ * Either way, the FusedParser must report the same errors and build the same
+ * blocks as the Scanner and Parser.
+ * Runs are time boxed. A failing case is shrunk by deleting ever smaller runs of
+ * lines while it keeps failing, then written to fuzz-SEED.i.
+ *
+ * Usage: java src.lab1.Fuzzer [seconds] [seed]
+ *
+ * @author Tyra Cole
+ *
+ */
+public final class Fuzzer {
+    // Memory of the reference simulator, in words.
+    private static final int MEMORY_WORDS = BytecodeCompiler.MEMORY_WORDS;
+    // Addresses the generated code touches stay below this.
+    private static final int ADDRESSES = 256;
+    // Time budget of cases that choose among allocators; long enough for all of them.
+    private static final long CHOOSE_MILLIS = 10_000;
+
+    /**
+     * A line of a case, and whether it was broken on purpose.
+     */
+    private static final class Line {
+        final String text;
+        final boolean broken;
+
+        Line(String text, boolean broken) {
+            this.text = text;
+            this.broken = broken;
+        }
+    }
+
+    /**
+     * The settings a case is checked with.
+     */
+    private static final class Settings {
+        final boolean invalid;
+        final int k;
+        final boolean linearScan;
+        final boolean optimize;
+        final boolean choose;
+        final boolean reorder;
+
+        Settings(boolean invalid, int k, boolean linearScan, boolean optimize, boolean choose, boolean reorder) {
+            this.invalid = invalid;
+            this.k = k;
+            this.linearScan = linearScan;
+            this.optimize = optimize;
+            this.choose = choose;
+            this.reorder = reorder;
+        }
+
+        @Override
+        public String toString() {
+            return invalid ? "invalid input" : "k=" + k + (linearScan ? " -l" : "") + (optimize ? " -O" : "")
+                    + (choose ? " -c" : "") + (reorder ? " -r" : "");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        int cases = 0;
+        while (System.nanoTime() < deadline) {
+            long caseSeed = seed + cases++;
+            Random random = new Random(caseSeed);
+            Settings settings = new Settings(random.nextInt(4) == 0, 3 + random.nextInt(14),
+                    random.nextBoolean(), random.nextInt(3) == 0, random.nextInt(4) == 0,
+                    random.nextInt(4) == 0);
+            List<Line> lines = generate(random);
+            if (settings.invalid) lines = breakLines(random, lines);
+            String failure = check(lines, settings);
+            if (failure != null) {
+                List<Line> shrunk = shrink(lines, settings);
+                String path = "fuzz-" + caseSeed + ".i";
+                Files.write(Paths.get(path), text(shrunk).getBytes(Charset.defaultCharset()));
+                System.out.println("FAIL seed " + caseSeed + " (" + settings + "): " + check(shrunk, settings));
+                System.out.println("Shrunk from " + lines.size() + " to " + shrunk.size() + " lines, written to " + path);
+                System.exit(1);
+            }
+        }
+        System.out.println(cases + " cases passed, seeds " + seed + " to " + (seed + cases - 1));
+    }
+
+    /**
+     * Generates a valid block. Every register is defined before it is used, and
+     * loads and stores go through registers known to hold small aligned addresses,
+     * so every access stays in memory.
+     */
+    private static List<Line> generate(Random random) {
+        int length = 1 + random.nextInt(random.nextBoolean() ? 40 : 400);
+        int registers = 2 + random.nextInt(40);
+        boolean[] address = new boolean[registers];
+        boolean[] defined = new boolean[registers];
+        List<Line> lines = new ArrayList<>();
+        for (int n = 0; n < length; n++) {
+            int d = random.nextInt(registers);
+            String line;
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                    if (random.nextBoolean()) {
+                        line = "loadI " + 4 * random.nextInt(ADDRESSES) + " => r" + d;
+                        address[d] = true;
+                        defined[d] = true;
+                    } else {
+                        line = "loadI " + (random.nextBoolean() ? random.nextInt(64) : random.nextInt(Integer.MAX_VALUE)) + " => r" + d;
+                        address[d] = false;
+                        defined[d] = true;
+                    }
+                    break;
+                case 2:
+                case 3: {
+                    int a = addressRegister(random, address, defined, lines);
+                    line = "load r" + a + " => r" + d;
+                    address[d] = false;
+                    defined[d] = true;
+                    break;
+                }
+                case 4:
+                case 5: {
+                    int a = addressRegister(random, address, defined, lines);
+                    line = "store r" + definedRegister(random, defined, lines) + " => r" + a;
+                    break;
+                }
+                case 6:
+                    line = "output " + 4 * random.nextInt(ADDRESSES);
+                    break;
+                case 7:
+                    line = random.nextInt(4) == 0 ? "nop" : "L" + n + ":";
+                    break;
+                default: {
+                    String[] ops = {"add", "sub", "mult", "lshift", "rshift"};
+                    line = ops[random.nextInt(ops.length)] + " r" + definedRegister(random, defined, lines) + ", r"
+                            + definedRegister(random, defined, lines) + " => r" + d;
+                    address[d] = false;
+                    defined[d] = true;
+                    break;
+                }
+            }
+            if (random.nextInt(8) == 0) line = line.replace(" ", random.nextBoolean() ? "\t" : "  ");
+            if (random.nextInt(8) == 0) line += " // " + random.nextInt(1000);
+            lines.add(new Line(line, false));
+        }
+        return lines;
+    }
+
+    /**
+     * @return A register holding an address, defining one first if there is none.
+     */
+    private static int addressRegister(Random random, boolean[] address, boolean[] defined, List<Line> lines) {
+        int start = random.nextInt(address.length);
+        for (int r = 0; r < address.length; r++) {
+            int a = (start + r) % address.length;
+            if (address[a]) return a;
+        }
+        lines.add(new Line("loadI " + 4 * random.nextInt(ADDRESSES) + " => r" + start, false));
+        address[start] = true;
+        defined[start] = true;
+        return start;
+    }
+
+    /**
+     * @return A register that has been defined, defining one first if there is none.
+     */
+    private static int definedRegister(Random random, boolean[] defined, List<Line> lines) {
+        int start = random.nextInt(defined.length);
+        for (int r = 0; r < defined.length; r++) {
+            int a = (start + r) % defined.length;
+            if (defined[a]) return a;
+        }
+        lines.add(new Line("loadI " + random.nextInt(64) + " => r" + start, false));
+        defined[start] = true;
+        return start;
+    }
+
+    /**
+     * Breaks some lines of a valid block, each in a way the grammar cannot accept.
+     */
+    private static List<Line> breakLines(Random random, List<Line> lines) {
+        List<Line> result = new ArrayList<>(lines);
+        int count = 1 + random.nextInt(Math.min(20, lines.size()));
+        for (int n = 0; n < count; n++) {
+            int i = random.nextInt(result.size());
+            String text = result.get(i).text;
+            int comment = text.indexOf("//");
+            String code = (comment < 0 ? text : text.substring(0, comment)).trim();
+            if (code.equals("nop") || code.endsWith(":") || result.get(i).broken) continue;
+            String[] words = code.split("\\s+");
+            String broken;
+            switch (random.nextInt(5)) {
+                case 0:  // an unknown opcode
+                    broken = "frob" + code.substring(words[0].length());
+                    break;
+                case 1:  // a stray character
+                    int at = random.nextInt(code.length() + 1);
+                    broken = code.substring(0, at) + "#" + code.substring(at);
+                    break;
+                case 2:  // a number too large for an int
+                    broken = code.replaceFirst("\\d+", "99999999999");
+                    break;
+                case 3:  // the last operand missing
+                    broken = code.substring(0, code.lastIndexOf(words[words.length - 1])).trim();
+                    break;
+                default:  // the arrow missing, or for output the constant
+                    broken = code.contains("=>") ? code.replace("=>", "") : "output";
+                    break;
+            }
+            result.set(i, new Line(broken, true));
+        }
+        return result;
+    }
+
+    /**
+     * Checks a case.
+     *
+     * @return A description of the failure, or null if the case passes.
+     */
+    private static String check(List<Line> lines, Settings settings) {
+        try {
+            Diagnostics diagnostics = new Diagnostics(Integer.MAX_VALUE);
+            String text = text(lines);
+            Scanner scanner = new Scanner(text, diagnostics);
+            Parser parser = new Parser(scanner.addTokens(), diagnostics);
+            parser.parse();
+
+            boolean[] reported = new boolean[lines.size() + 2];
+            for (int e = 0; e < diagnostics.count(); e++) {
+                int line = diagnostics.line(e);
+                if (line < 1 || line > lines.size()) return "error reported on line " + line + ", outside the input";
+                if (!lines.get(line - 1).broken) return "error reported on valid line " + line + ": " + diagnostics.message(e);
+                reported[line] = true;
+            }
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).broken && !reported[i + 1]) return "no error reported on broken line " + (i + 1);
+            }
+            String fused = compareFrontEnds(text, parser, diagnostics);
+            if (fused != null) return fused;
+            if (settings.invalid || parser.hasError()) return null;
+
+            // Shrinking can delete a definition; a case that then reads an undefined
+            // register or leaves memory no longer means anything, and passes.
+            Block original = Block.from(parser.operations());
+            if (!definesBeforeUse(original)) return null;
+            IntList expected;
+            try {
+                expected = simulate(original);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+            Program program = new Program(parser, scanner.symbols(), "fuzz");
+            if (settings.choose) program.choose(CHOOSE_MILLIS);
+            if (settings.reorder) program.reorder();
+            String allocated = program.allocate(settings.k, settings.linearScan, settings.optimize);
+
+            Diagnostics again = new Diagnostics();
+            Scanner allocatedScanner = new Scanner(allocated, again);
+            Parser allocatedParser = new Parser(allocatedScanner.addTokens(), again);
+            allocatedParser.parse();
+            if (allocatedParser.hasError()) return "allocated code does not parse";
+            SymbolTable symbols = allocatedScanner.symbols();
+            for (int id = 0; id < symbols.registerCount(); id++) {
+                if (symbols.registerNumber(id) >= settings.k) return "allocated code uses " + symbols.registerName(id);
+            }
+            IntList actual = simulate(Block.from(allocatedParser.operations()));
+            if (actual.size() != expected.size()) return "allocated code prints " + actual.size() + " values, not " + expected.size();
+            for (int n = 0; n < actual.size(); n++) {
+                if (actual.get(n) != expected.get(n)) {
+                    return "output " + n + " is " + actual.get(n) + ", not " + expected.get(n);
+                }
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return "threw " + e;
+        }
+    }
+
+    /**
+     * Runs the FusedParser on a text that the Scanner and Parser have parsed.
+     *
+     * @return How its errors or blocks differ from theirs, or null if they do not.
+     */
+    private static String compareFrontEnds(String text, Parser parser, Diagnostics diagnostics) {
+        Diagnostics fusedDiagnostics = new Diagnostics(Integer.MAX_VALUE);
+        FusedParser fused = new FusedParser(text, fusedDiagnostics);
+        fused.parse();
+        String expected = messages(diagnostics);
+        String actual = messages(fusedDiagnostics);
+        if (!actual.equals(expected)) return "fused front end reports\n" + actual + "rather than\n" + expected;
+        if (fused.hasError() != parser.hasError()) return "fused front end disagrees on whether there is a parse error";
+
+        StringBuilder classic = new StringBuilder();
+        List<Token> labels = parser.labels();
+        for (int l = 0; l < labels.size(); l++) {
+            classic.append(labels.get(l).lexeme).append(" at ").append(parser.labelPosition(l)).append('\n');
+        }
+        dump(Block.from(parser.operations()), classic);
+        StringBuilder blocks = new StringBuilder();
+        int position = fused.blocks().get(0).size();
+        for (int l = 0; l < fused.labels().size(); l++) {
+            blocks.append(fused.labels().get(l).lexeme).append(" at ").append(position).append('\n');
+            position += fused.blocks().get(l + 1).size();
+        }
+        for (Block block : fused.blocks()) dump(block, blocks);
+        if (!blocks.toString().equals(classic.toString())) {
+            return "fused front end builds\n" + blocks + "rather than\n" + classic;
+        }
+        return null;
+    }
+
+    /**
+     * @return The errors as they would be printed; the diagnostics are emptied.
+     */
+    private static String messages(Diagnostics diagnostics) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diagnostics.flush(new PrintStream(out, true));
+        return out.toString();
+    }
+
+    /**
+     * Appends the operations of a block with their lines and source register ids.
+     */
+    private static void dump(Block block, StringBuilder out) {
+        for (int i = 0; i < block.size(); i++) {
+            out.append(block.line(i)).append(": ");
+            block.appendOperation(out, i, Block.SR_COLUMN);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * @return Whether every register of a block is defined before it is used.
+     */
+    private static boolean definesBeforeUse(Block block) {
+        boolean[] defined = new boolean[block.maxSR() + 1];
+        for (int i = 0; i < block.size(); i++) {
+            Category op = block.opcode(i);
+            for (int slot = 0; slot < 2; slot++) {
+                if (Block.isUse(op, slot) && !defined[block.SR(i, slot)]) return false;
+            }
+            if (Block.isDef(op, 2)) defined[block.SR(i, 2)] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a block on the reference simulator, reading registers from the SR column.
+     *
+     * @return The values printed.
+     */
+    static IntList simulate(Block block) {
+        int[] registers = new int[block.maxSR() + 1];
+        int[] memory = new int[MEMORY_WORDS];
+        IntList output = new IntList();
+        for (int i = 0; i < block.size(); i++) {
+            Category op = block.opcode(i);
+            switch (op) {
+                case NOP:
+                    break;
+                case LOADI:
+                    registers[block.SR(i, 2)] = block.SR(i, 0);
+                    break;
+                case LOAD:
+                    registers[block.SR(i, 2)] = memory[registers[block.SR(i, 0)] >> 2];
+                    break;
+                case STORE:
+                    memory[registers[block.SR(i, 1)] >> 2] = registers[block.SR(i, 0)];
+                    break;
+                case OUTPUT:
+                    output.add(memory[block.SR(i, 0) >> 2]);
+                    break;
+                default:
+                    registers[block.SR(i, 2)] = MemoryDependence.evaluate(op,
+                            registers[block.SR(i, 0)], registers[block.SR(i, 1)]);
+                    break;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Shrinks a failing case: deletes runs of lines, halving the run length each
+     * time no deletion of that length keeps the case failing.
+     */
+    private static List<Line> shrink(List<Line> lines, Settings settings) {
+        List<Line> current = lines;
+        for (int run = Math.max(1, current.size() / 2); run >= 1; run /= 2) {
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (int from = 0; from + run <= current.size(); from += run) {
+                    List<Line> candidate = new ArrayList<>(current.subList(0, from));
+                    candidate.addAll(current.subList(from + run, current.size()));
+                    if (!candidate.isEmpty() && check(candidate, settings) != null) {
+                        current = candidate;
+                        progress = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private static String text(List<Line> lines) {
+        StringBuilder text = new StringBuilder();
+        for (Line line : lines) text.append(line.text).append('\n');
+        return text.toString();
+    }
+}
@@ -0,0 +1,419 @@
+package src.lab1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Incremental register allocation. The previous run is kept in a sidecar file:
+ * a hash of every input line, the block's operations, the allocator's state every
+ * CHECKPOINT_INTERVAL operations (which values were live and where they were kept)
+ * and the allocated code.
+ *
+ * The symbol table is kept too, so that the edited lines give their registers
+ * the same ids as before.
+ *
+ * A new run diffs the input against the old one line by line. Operations before the
+ * first changed line are unchanged, so the allocated code up to a checkpoint in that
+ * prefix is reused as is. The checkpoint chosen is the latest one at which every
+ * value the edited block needs is still held somewhere by the old allocation; from
+ * there the block is renamed and allocated again, starting from the old state. Only
+ * the lines from the edit onwards are scanned and parsed.
+ *
+ * The input must be a single block: a file with labels is rejected, since its
+ * blocks and the values that cross them are not part of the state.
+ *
+ * @author Tyra Cole
+ *
+ */
+class IncrementalAllocator {
+    private static final int INVALID = Block.INVALID;
+    private static final int INTERVAL = AllocatorWithSpill.CHECKPOINT_INTERVAL;
+    private static final int MAGIC = 0x494C4F43;  // "ILOC"
+    private static final int VERSION = 2;
+
+    private final String filename;
+    private final String statePath;
+    private final int k;
+
+    /**
+     * @param filename The input file.
+     * @param statePath The sidecar file holding the previous run.
+     * @param k The number of physical registers available.
+     */
+    IncrementalAllocator(String filename, String statePath, int k) {
+        this.filename = filename;
+        this.statePath = statePath;
+        this.k = k;
+    }
+
+    /**
+     * Allocates the input, prints the allocated code and updates the sidecar file.
+     */
+    void run() throws IOException {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(Paths.get(filename)), Charset.defaultCharset());
+        } catch (IOException e) {
+            Main.error(-1, "Error reading file: " + filename);
+            System.exit(1);
+            return;
+        }
+
+        IntList lineStarts = new IntList();
+        long[] lineHashes = hashLines(source, lineStarts);
+        State old = State.read(Paths.get(statePath), k);
+
+        // Find the first line that differs from the previous run.
+        int firstDiff = 0;
+        if (old != null) {
+            int common = Math.min(old.lineHashes.length, lineHashes.length);
+            while (firstDiff < common && old.lineHashes[firstDiff] == lineHashes[firstDiff]) firstDiff++;
+            if (firstDiff == old.lineHashes.length && firstDiff == lineHashes.length) {
+                System.out.write(old.output);
+                System.out.flush();
+                return;
+            }
+        }
+
+        // Operations that start on an earlier line are unchanged. The last of them is
+        // parsed again, with its whole line, in case it continues onto the edited line.
+        int p = 0;
+        int restartLine = 1;
+        if (old != null) {
+            int p0 = lowerBound(old.opLine, old.opCount, firstDiff + 1);
+            if (p0 > 0) {
+                restartLine = old.opLine[p0 - 1];
+                p = lowerBound(old.opLine, old.opCount, restartLine);
+            }
+        }
+
+        Diagnostics diagnostics = new Diagnostics();
+        SymbolTable symbols = new SymbolTable();
+        if (old != null) {
+            for (int number : old.registerNumbers) symbols.registerId(number);
+        }
+        Scanner scanner = new Scanner(source.substring(lineStarts.get(restartLine - 1)), restartLine,
+                                      diagnostics, symbols);
+        List<Token> tokens = scanner.addTokens();
+        Parser parser = new Parser(tokens, diagnostics);
+        parser.parse();
+        diagnostics.flush(System.err);
+        if (parser.hasError()) {
+            Main.error(-1, "Error parsing file: " + filename);
+            return;
+        }
+        if (!parser.labels().isEmpty()) {
+            // The state describes one block; the prefix of a previous run has no labels.
+            Main.error(parser.labels().get(0).line, "Labels are not supported with -i, which allocates "
+                    + filename + " as a single block; allocate it without -i");
+            return;
+        }
+        Block tail = Block.from(parser.operations());
+
+        // Walk back from the edit until the old allocation still holds every value that is live.
+        int cp = 0;
+        if (old != null) {
+            Liveness live = new Liveness(Math.max(tail.maxSR(), old.maxSR) + 1);
+            for (int i = tail.size() - 1; i >= 0; i--) {
+                live.step(tail.opcode(i), tail.SR(i, 0), tail.SR(i, 1), tail.SR(i, 2));
+            }
+            cp = p / INTERVAL;
+            old.stepBack(live, cp * INTERVAL, p);
+            while (cp > 0 && !old.covers(cp, live)) {
+                cp--;
+                old.stepBack(live, cp * INTERVAL, (cp + 1) * INTERVAL);
+            }
+        }
+
+        Block block = join(old, cp * INTERVAL, p, tail);
+        Renamer renamer = new Renamer(block);
+        renamer.renameSR2LiveRange();
+        boolean reserve = renamer.maxLive() > k;
+        if (cp > 0) {
+            if (!old.reserved && reserve) {
+                // The old prefix was allocated without a spill register; start over.
+                cp = 0;
+                block = join(old, 0, p, tail);
+                renamer = new Renamer(block);
+                renamer.renameSR2LiveRange();
+                reserve = renamer.maxLive() > k;
+            } else {
+                reserve = old.reserved;
+            }
+        }
+
+        int c = cp * INTERVAL;
+        IntList starts = new IntList();
+        IntList data = new IntList();
+        if (old != null) {
+            for (int i = 0; i < cp; i++) starts.add(old.checkpointStarts[i]);
+            int end = cp < old.checkpointStarts.length ? old.checkpointStarts[cp] : old.checkpointData.length;
+            for (int i = 0; i < end; i++) data.add(old.checkpointData[i]);
+        }
+        int firstNew = starts.size();
+
+        AllocatorWithSpill allocator = new AllocatorWithSpill(renamer, k, reserve);
+        if (cp > 0) allocator.resume(old.checkpointData, old.checkpointStarts[cp]);
+        allocator.recordCheckpoints(c, starts, data);
+        allocator.allocateWithSpill();
+
+        // Reuse the old output up to the checkpoint and print the rest, turning each new
+        // checkpoint's operation index into an offset in the output.
+        int prefixLength = cp > 0 ? old.checkpointData[old.checkpointStarts[cp]] : 0;
+        StringBuilder text = new StringBuilder();
+        Block allocated = allocator.allocated();
+        int next = firstNew;
+        for (int i = 0; i <= allocated.size(); i++) {
+            while (next < starts.size() && data.get(starts.get(next)) == i) {
+                data.set(starts.get(next), prefixLength + text.length());
+                next++;
+            }
+            if (i == allocated.size()) break;
+            allocated.appendOperation(text, i, Block.PR_COLUMN);
+            text.append('\n');
+        }
+        byte[] suffix = text.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] output = new byte[prefixLength + suffix.length];
+        if (prefixLength > 0) System.arraycopy(old.output, 0, output, 0, prefixLength);
+        System.arraycopy(suffix, 0, output, prefixLength, suffix.length);
+
+        System.out.write(output);
+        System.out.flush();
+
+        State state = new State();
+        state.k = k;
+        state.reserved = reserve;
+        state.lineHashes = lineHashes;
+        state.registerNumbers = new int[symbols.registerCount()];
+        for (int id = 0; id < state.registerNumbers.length; id++) state.registerNumbers[id] = symbols.registerNumber(id);
+        state.opCount = c + block.size();
+        state.opcode = new int[state.opCount];
+        state.opLine = new int[state.opCount];
+        state.opSR = new int[state.opCount * Block.SLOTS];
+        if (c > 0) {
+            System.arraycopy(old.opcode, 0, state.opcode, 0, c);
+            System.arraycopy(old.opLine, 0, state.opLine, 0, c);
+            System.arraycopy(old.opSR, 0, state.opSR, 0, c * Block.SLOTS);
+        }
+        for (int i = 0; i < block.size(); i++) {
+            state.opcode[c + i] = block.opcode(i).ordinal();
+            state.opLine[c + i] = block.line(i);
+            for (int slot = 0; slot < Block.SLOTS; slot++) {
+                state.opSR[(c + i) * Block.SLOTS + slot] = block.SR(i, slot);
+            }
+        }
+        state.checkpointStarts = starts.toArray();
+        state.checkpointData = data.toArray();
+        state.output = output;
+        try {
+            state.write(Paths.get(statePath));
+        } catch (IOException e) {
+            Main.error(-1, "Error writing incremental state: " + statePath);
+        }
+    }
+
+    /**
+     * Builds the block to allocate: the old operations in [from, to) followed by the newly parsed ones.
+     */
+    private static Block join(State old, int from, int to, Block tail) {
+        Block block = new Block(to - from + tail.size());
+        Category[] categories = Category.values();
+        for (int i = from; i < to; i++) {
+            int b = block.add(categories[old.opcode[i]], old.opLine[i]);
+            for (int slot = 0; slot < Block.SLOTS; slot++) block.setSR(b, slot, old.opSR[i * Block.SLOTS + slot]);
+        }
+        for (int i = 0; i < tail.size(); i++) {
+            int b = block.add(tail.opcode(i), tail.line(i));
+            for (int slot = 0; slot < Block.SLOTS; slot++) block.setSR(b, slot, tail.SR(i, slot));
+        }
+        return block;
+    }
+
+    /**
+     * Hashes every line of the source (FNV-1a) and records where each line starts.
+     */
+    private static long[] hashLines(String source, IntList lineStarts) {
+        lineStarts.add(0);
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') lineStarts.add(i + 1);
+        }
+        long[] hashes = new long[lineStarts.size()];
+        for (int l = 0; l < hashes.length; l++) {
+            int end = l + 1 < lineStarts.size() ? lineStarts.get(l + 1) : source.length();
+            long h = 0xcbf29ce484222325L;
+            for (int i = lineStarts.get(l); i < end; i++) {
+                h ^= source.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            hashes[l] = h;
+        }
+        return hashes;
+    }
+
+    /**
+     * @return The index of the first of the first n values that is at least key.
+     */
+    private static int lowerBound(int[] values, int n, int key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Set of source registers live at a point, maintained while walking a block backwards.
+     */
+    private static class Liveness {
+        final boolean[] live;
+        int count = 0;
+
+        Liveness(int registers) {
+            live = new boolean[registers];
+        }
+
+        void step(Category op, int sr0, int sr1, int sr2) {
+            if (Block.isDef(op, 2) && live[sr2]) {
+                live[sr2] = false;
+                count--;
+            }
+            if (Block.isUse(op, 0) && !live[sr0]) {
+                live[sr0] = true;
+                count++;
+            }
+            if (Block.isUse(op, 1) && !live[sr1]) {
+                live[sr1] = true;
+                count++;
+            }
+        }
+    }
+
+    /**
+     * The previous run, as stored in the sidecar file.
+     */
+    private static class State {
+        int k;
+        boolean reserved;
+        long[] lineHashes;
+        int[] registerNumbers;
+        int opCount;
+        int maxSR = INVALID;
+        int[] opcode;
+        int[] opLine;
+        int[] opSR;
+        int[] checkpointStarts;
+        int[] checkpointData;
+        byte[] output;
+
+        /**
+         * Walks the old operations in [from, to) backwards, updating the live set.
+         */
+        void stepBack(Liveness live, int from, int to) {
+            Category[] categories = Category.values();
+            for (int i = to - 1; i >= from; i--) {
+                int s = i * Block.SLOTS;
+                live.step(categories[opcode[i]], opSR[s], opSR[s + 1], opSR[s + 2]);
+            }
+        }
+
+        /**
+         * @return true if checkpoint cp holds every register in the live set.
+         */
+        boolean covers(int cp, Liveness live) {
+            int at = checkpointStarts[cp];
+            int count = checkpointData[at + 2];
+            int held = 0;
+            for (int e = 0; e < count; e++) {
+                int sr = checkpointData[at + 3 + e * 5];
+                if (sr < live.live.length && live.live[sr]) held++;
+            }
+            return held == live.count;
+        }
+
+        /**
+         * Reads a sidecar file, or returns null if there is none or it was made for another k.
+         */
+        static State read(Path path, int k) {
+            if (!Files.exists(path)) return null;
+            try (InputStream in = Files.newInputStream(path);
+                 DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+                if (data.readInt() != MAGIC || data.readInt() != VERSION) return null;
+                State state = new State();
+                state.k = data.readInt();
+                if (state.k != k) return null;
+                state.reserved = data.readBoolean();
+                state.lineHashes = new long[data.readInt()];
+                for (int i = 0; i < state.lineHashes.length; i++) state.lineHashes[i] = data.readLong();
+                state.registerNumbers = readInts(data);
+                state.opCount = data.readInt();
+                state.opcode = new int[state.opCount];
+                state.opLine = new int[state.opCount];
+                state.opSR = new int[state.opCount * Block.SLOTS];
+                for (int i = 0; i < state.opCount; i++) {
+                    state.opcode[i] = data.readInt();
+                    state.opLine[i] = data.readInt();
+                    Category op = Category.values()[state.opcode[i]];
+                    for (int slot = 0; slot < Block.SLOTS; slot++) {
+                        int sr = data.readInt();
+                        state.opSR[i * Block.SLOTS + slot] = sr;
+                        if (Block.isRegister(op, slot)) state.maxSR = Math.max(state.maxSR, sr);
+                    }
+                }
+                state.checkpointStarts = readInts(data);
+                state.checkpointData = readInts(data);
+                state.output = new byte[data.readInt()];
+                data.readFully(state.output);
+                return state;
+            } catch (IOException | RuntimeException e) {
+                return null;  // A damaged sidecar only costs a full run.
+            }
+        }
+
+        private static int[] readInts(DataInputStream data) throws IOException {
+            int[] values = new int[data.readInt()];
+            for (int i = 0; i < values.length; i++) values[i] = data.readInt();
+            return values;
+        }
+
+        void write(Path path) throws IOException {
+            try (OutputStream out = Files.newOutputStream(path);
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                data.writeInt(k);
+                data.writeBoolean(reserved);
+                data.writeInt(lineHashes.length);
+                for (long h : lineHashes) data.writeLong(h);
+                writeInts(data, registerNumbers);
+                data.writeInt(opCount);
+                for (int i = 0; i < opCount; i++) {
+                    data.writeInt(opcode[i]);
+                    data.writeInt(opLine[i]);
+                    for (int slot = 0; slot < Block.SLOTS; slot++) data.writeInt(opSR[i * Block.SLOTS + slot]);
+                }
+                writeInts(data, checkpointStarts);
+                writeInts(data, checkpointData);
+                data.writeInt(output.length);
+                data.write(output);
+            }
+        }
+
+        private static void writeInts(DataOutputStream data, int[] values) throws IOException {
+            data.writeInt(values.length);
+            for (int v : values) data.writeInt(v);
+        }
+    }
+}
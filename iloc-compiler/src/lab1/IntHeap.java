@@ -0,0 +1,134 @@
+package src.lab1;
+
+/**
+ * A binary heap of small int ids, each with an int key. The heap remembers where
+ * every id sits, so the key of an id can be changed, or the id removed, in
+ * O(log n) without boxing anything.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class IntHeap {
+    private static final int ABSENT = -1;
+
+    private final boolean max;
+    private final int[] heap;
+    private final int[] key;
+    private final int[] position;
+    private int size = 0;
+
+    /**
+     * @param capacity Ids range over [0, capacity).
+     * @param max Whether the largest key is on top, rather than the smallest.
+     */
+    IntHeap(int capacity, boolean max) {
+        this(capacity, max, CompilationContext.NONE);
+    }
+
+    /**
+     * Constructs a heap whose arrays come from a context.
+     */
+    IntHeap(int capacity, boolean max, CompilationContext context) {
+        this.max = max;
+        heap = context.ints(capacity, 0);
+        key = context.ints(capacity, 0);
+        position = context.ints(capacity, ABSENT);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int id) {
+        return position[id] != ABSENT;
+    }
+
+    /**
+     * @return The id on top of the heap; the heap must not be empty.
+     */
+    int top() {
+        return heap[0];
+    }
+
+    int topKey() {
+        return key[heap[0]];
+    }
+
+    /**
+     * @return The key of an id in the heap.
+     */
+    int key(int id) {
+        return key[id];
+    }
+
+    void push(int id, int k) {
+        key[id] = k;
+        heap[size] = id;
+        position[id] = size;
+        up(size++);
+    }
+
+    /**
+     * Removes and returns the id on top of the heap.
+     */
+    int pop() {
+        int id = heap[0];
+        remove(id);
+        return id;
+    }
+
+    void remove(int id) {
+        int at = position[id];
+        position[id] = ABSENT;
+        if (--size == at) return;
+        int moved = heap[size];
+        heap[at] = moved;
+        position[moved] = at;
+        up(at);
+        down(position[moved]);
+    }
+
+    /**
+     * Changes the key of an id in the heap.
+     */
+    void update(int id, int k) {
+        key[id] = k;
+        up(position[id]);
+        down(position[id]);
+    }
+
+    /**
+     * @return Whether key a belongs above key b.
+     */
+    private boolean above(int a, int b) {
+        return max ? a > b : a < b;
+    }
+
+    private void up(int at) {
+        int id = heap[at];
+        while (at > 0) {
+            int parent = (at - 1) >> 1;
+            if (!above(key[id], key[heap[parent]])) break;
+            heap[at] = heap[parent];
+            position[heap[at]] = at;
+            at = parent;
+        }
+        heap[at] = id;
+        position[id] = at;
+    }
+
+    private void down(int at) {
+        int id = heap[at];
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) break;
+            if (child + 1 < size && above(key[heap[child + 1]], key[heap[child]])) child++;
+            if (!above(key[heap[child]], key[id])) break;
+            heap[at] = heap[child];
+            position[heap[at]] = at;
+            at = child;
+        }
+        heap[at] = id;
+        position[id] = at;
+    }
+}
@@ -0,0 +1,57 @@
+package src.lab1;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used where a List<Integer> would box every
+ * element.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class IntList {
+    private int[] data;
+    private int size = 0;
+
+    IntList() {
+        this(16);
+    }
+
+    IntList(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Appends a value to the end of the list.
+     */
+    void add(int value) {
+        if (size == data.length) data = Arrays.copyOf(data, size * 2);
+        data[size++] = value;
+    }
+
+    int get(int index) {
+        return data[index];
+    }
+
+    void set(int index, int value) {
+        data[index] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the list but keeps its storage.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return A copy of the elements of the list.
+     */
+    int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
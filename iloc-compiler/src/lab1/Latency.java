@@ -0,0 +1,38 @@
+package src.lab1;
+
+/**
+ * The latency model of the ILOC simulator: the number of cycles each operation
+ * takes before its result can be used. Memory operations are the slow ones.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Latency {
+
+    private Latency() {
+    }
+
+    /**
+     * @return The number of cycles an operation with this opcode takes.
+     */
+    static int of(Category op) {
+        switch (op) {
+            case LOAD:
+            case STORE:
+                return 6;
+            case MULT:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Estimates the cycles a block takes when its operations run one after another.
+     */
+    static long cycles(Block block) {
+        long cycles = 0;
+        for (int i = 0; i < block.size(); i++) cycles += of(block.opcode(i));
+        return cycles;
+    }
+}
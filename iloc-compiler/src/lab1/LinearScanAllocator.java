@@ -0,0 +1,328 @@
+package src.lab1;
+
+import java.util.BitSet;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Linear-scan register allocator, for blocks too large to spend much time on. The
+ * renamer's live ranges are visited in order of their start as the block is walked
+ * front to back. Ranges that hold a register are kept in two heaps: a min-heap by
+ * end point, from which ranges that have ended are expired, and a max-heap by next
+ * use. When a range starts and no register is free, the range whose next use is
+ * farthest away, possibly the new one, is spilled for the rest of its life: every
+ * later use reloads it into a scratch register. Ranges defined by loadI are
+ * rematerialized instead of stored.
+ *
+ * Each operation costs O(log k), so the allocator scales to blocks of millions of
+ * operations, but unlike AllocatorWithSpill a spilled value never gets a register
+ * back, so it inserts more loads.
+ *
+ * If MaxLive exceeds k, registers k-2 and k-1 are reserved as scratch registers.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class LinearScanAllocator {
+    private static final int INVALID = Block.INVALID;
+
+    private final Renamer renamer;
+    private final Block block;
+    private final Block allocated;
+    private final int k;
+    private final int usable;
+    // Scratch registers for the operands of a spilled range, one per use slot.
+    private final int[] scratch;
+
+    private final int[] VRToPR;
+    private final int[] PRToVR;
+    private final int[] end;
+    private final boolean[] spilled;
+    private final int[] VRToSpill;
+    private final int[] VRToConst;
+    private final boolean[] rematerializable;
+
+    // Stack of free physical registers.
+    private final int[] freePRs;
+    private int freeCount = 0;
+
+    // Ranges that hold a register, by end point and by next use.
+    private final IntHeap ends;
+    private final IntHeap nextUses;
+
+    // Spill locations, from spillBase, reused lowest slot first as in AllocatorWithSpill.
+    private final int spillBase;
+    private int nextSpill;
+    private final BitSet freeSlots = new BitSet();
+
+    // Where decisions are traced, or null.
+    private AllocatorTrace trace;
+
+    // Counts of the code the allocator inserted.
+    private int stores = 0;
+    private int reloads = 0;
+    private int rematerializations = 0;
+
+    /**
+     * Constructs an allocator for a renamed block.
+     *
+     * @param renamer The renamer that has already renamed the block.
+     * @param k The number of physical registers available.
+     */
+    LinearScanAllocator(Renamer renamer, int k) {
+        this(renamer, k, AllocatorWithSpill.SPILL_BASE);
+    }
+
+    /**
+     * @param spillBase The first address of the spill slots, at least SPILL_BASE.
+     */
+    LinearScanAllocator(Renamer renamer, int k, int spillBase) {
+        this.renamer = renamer;
+        this.block = renamer.block();
+        CompilationContext context = renamer.context();
+        this.allocated = context.emptyLike(block, block.size() + block.size() / 4);
+        this.k = k;
+        this.spillBase = spillBase;
+        this.nextSpill = spillBase;
+        boolean reserve = renamer.maxLive() > k;
+        this.usable = reserve ? k - 2 : k;
+        this.scratch = reserve ? new int[] {k - 2, k - 1} : new int[] {INVALID, INVALID};
+
+        int VRs = renamer.VRCount();
+        VRToPR = context.ints(VRs, INVALID);
+        end = context.ints(VRs, 0);
+        spilled = context.booleans(VRs);
+        VRToSpill = context.ints(VRs, INVALID);
+        VRToConst = context.ints(VRs, 0);
+        rematerializable = context.booleans(VRs);
+        ends = new IntHeap(VRs, false, context);
+        nextUses = new IntHeap(VRs, true, context);
+
+        PRToVR = context.ints(k, INVALID);
+        freePRs = context.ints(k, 0);
+        for (int p = usable - 1; p >= 0; p--) freePRs[freeCount++] = p;
+
+        // A range ends at its last use, or at its definition if it has no use.
+        for (int i = 0; i < block.size(); i++) {
+            for (int slot = 0; slot < Block.SLOTS; slot++) {
+                if (Block.isRegister(block.opcode(i), slot)) end[block.VR(i, slot)] = i;
+            }
+        }
+    }
+
+    /**
+     * Records the allocator's decisions in a trace.
+     */
+    void trace(AllocatorTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Allocates every operation of the block, inserting spill and restore code as needed.
+     */
+    void allocate() {
+        for (int i = 0; i < block.size(); i++) {
+            Block.stopIfInterrupted(i);
+            allocateOperation(i);
+        }
+    }
+
+    private void allocateOperation(int i) {
+        Category op = block.opcode(i);
+        int line = block.line(i);
+
+        // Find every use: in its register, or reloaded into the scratch register of its slot.
+        boolean reloadA = false;
+        boolean reloadB = false;
+        for (int slot = 0; slot < 2; slot++) {
+            if (!Block.isUse(op, slot)) continue;
+            int vr = block.VR(i, slot);
+            int pr;
+            if (slot == 1 && Block.isUse(op, 0) && block.VR(i, 0) == vr) {
+                pr = block.PR(i, 0);
+            } else if (VRToPR[vr] != INVALID) {
+                pr = VRToPR[vr];
+                nextUses.update(vr, block.NU(i, slot));
+            } else if (!spilled[vr] && freeCount > 0) {
+                // Used before it is defined: the range starts here.
+                pr = freePRs[--freeCount];
+                place(vr, pr, block.NU(i, slot), line);
+            } else {
+                spilled[vr] = true;
+                pr = scratch[slot];
+                if (slot == 0) reloadA = true; else reloadB = true;
+            }
+            block.setPR(i, slot, pr);
+        }
+
+        // Expire the ranges that end here; their registers can take the definition.
+        while (ends.size() > 0 && ends.topKey() <= i) {
+            int vr = ends.pop();
+            nextUses.remove(vr);
+            freePRs[freeCount++] = VRToPR[vr];
+            PRToVR[VRToPR[vr]] = INVALID;
+            VRToPR[vr] = INVALID;
+        }
+
+        // Start the range of the definition.
+        boolean defSpilled = false;
+        int defPR = INVALID;
+        if (Block.isDef(op, 2)) {
+            int vr = block.VR(i, 2);
+            int nu = block.NU(i, 2);
+            if (op == LOADI) {
+                rematerializable[vr] = true;
+                VRToConst[vr] = block.SR(i, 0);
+            }
+            if (freeCount > 0) {
+                defPR = freePRs[--freeCount];
+                if (nu != Block.INFINITY) place(vr, defPR, nu, line);
+            } else if (nextUses.size() > 0 && nextUses.topKey() > nu) {
+                int victim = nextUses.top();
+                defPR = VRToPR[victim];
+                spill(victim, line);
+                place(vr, defPR, nu, line);
+            } else {
+                spilled[vr] = true;
+                defSpilled = true;
+                defPR = scratch[0];
+                if (trace != null) trace.record(AllocatorTrace.EVICT, line, vr, INVALID, nu);
+            }
+            block.setPR(i, 2, defPR);
+        }
+
+        if (reloadA) restore(block.VR(i, 0), scratch[0], line);
+        if (reloadB) restore(block.VR(i, 1), scratch[1], line);
+
+        if (defSpilled) {
+            int vr = block.VR(i, 2);
+            if (!rematerializable[vr]) {
+                emit(i);
+                if (block.NU(i, 2) != Block.INFINITY) {
+                    VRToSpill[vr] = takeSlot();
+                    store(vr, scratch[0], line);
+                }
+            }
+        } else {
+            emit(i);
+            if (defPR != INVALID && block.NU(i, 2) == Block.INFINITY) freePRs[freeCount++] = defPR;
+        }
+
+        // Spill locations of ranges that end here are free again.
+        for (int slot = 0; slot < 2; slot++) {
+            if (!Block.isUse(op, slot) || block.NU(i, slot) != Block.INFINITY) continue;
+            int vr = block.VR(i, slot);
+            if (VRToSpill[vr] != INVALID) {
+                freeSlots.set((VRToSpill[vr] - spillBase) / 4);
+                VRToSpill[vr] = INVALID;
+            }
+        }
+    }
+
+    /**
+     * Gives a range a register until its end.
+     */
+    private void place(int vr, int pr, int nu, int line) {
+        VRToPR[vr] = pr;
+        PRToVR[pr] = vr;
+        ends.push(vr, end[vr]);
+        nextUses.push(vr, nu);
+        if (trace != null) trace.record(AllocatorTrace.ASSIGN, line, vr, pr, nu);
+    }
+
+    /**
+     * Moves a range out of its register for good, storing it unless it can be rematerialized.
+     */
+    private void spill(int vr, int line) {
+        int pr = VRToPR[vr];
+        if (trace != null) trace.record(AllocatorTrace.EVICT, line, vr, pr, nextUses.key(vr));
+        ends.remove(vr);
+        nextUses.remove(vr);
+        VRToPR[vr] = INVALID;
+        PRToVR[pr] = INVALID;
+        spilled[vr] = true;
+        if (!rematerializable[vr]) {
+            VRToSpill[vr] = takeSlot();
+            store(vr, pr, line);
+        }
+    }
+
+    /**
+     * Loads a spilled range into a scratch register.
+     */
+    private void restore(int vr, int pr, int line) {
+        if (rematerializable[vr]) {
+            rematerializations++;
+            if (trace != null) trace.record(AllocatorTrace.REMATERIALIZE, line, vr, pr, VRToConst[vr]);
+            emitLoadI(VRToConst[vr], pr, line);
+        } else if (VRToSpill[vr] != INVALID) {
+            reloads++;
+            if (trace != null) trace.record(AllocatorTrace.RELOAD, line, vr, pr, VRToSpill[vr]);
+            emitLoadI(VRToSpill[vr], pr, line);
+            int l = allocated.add(LOAD, line);
+            allocated.setPR(l, 0, pr);
+            allocated.setPR(l, 2, pr);
+        }
+        // Otherwise it is used before it is defined and there is nothing to load.
+    }
+
+    private int takeSlot() {
+        int free = freeSlots.nextSetBit(0);
+        if (free >= 0) {
+            freeSlots.clear(free);
+            return spillBase + 4 * free;
+        }
+        nextSpill += 4;
+        return nextSpill - 4;
+    }
+
+    /**
+     * Stores the register holding vr to its spill location, using the second scratch
+     * register for the address.
+     */
+    private void store(int vr, int pr, int line) {
+        int address = VRToSpill[vr];
+        stores++;
+        if (trace != null) trace.record(AllocatorTrace.STORE, line, vr, pr, address);
+        emitLoadI(address, scratch[1], line);
+        int s = allocated.add(STORE, line);
+        allocated.setPR(s, 0, pr);
+        allocated.setPR(s, 1, scratch[1]);
+    }
+
+    private void emitLoadI(int constant, int pr, int line) {
+        int l = allocated.add(LOADI, line);
+        allocated.setSR(l, 0, constant);
+        allocated.setPR(l, 2, pr);
+    }
+
+    /**
+     * Copies operation i, with its physical registers, to the allocated block.
+     */
+    private void emit(int i) {
+        Category op = block.opcode(i);
+        int o = allocated.add(op, block.line(i));
+        if (Block.hasConstant(op)) allocated.setSR(o, 0, block.SR(i, 0));
+        for (int slot = 0; slot < Block.SLOTS; slot++) {
+            if (Block.isRegister(op, slot)) allocated.setPR(o, slot, block.PR(i, slot));
+        }
+    }
+
+    Block allocated() {
+        return allocated;
+    }
+
+    /**
+     * Adds the allocator's counts to a stats record.
+     */
+    void addStats(Stats stats) {
+        stats.put("k", k);
+        stats.put("maxLive", renamer.maxLive());
+        stats.put("operations", block.size());
+        stats.put("allocatedOperations", allocated.size());
+        stats.put("stores", stores);
+        stats.put("reloads", reloads);
+        stats.put("rematerializations", rematerializations);
+        stats.put("spillBytes", nextSpill - spillBase);
+    }
+}
@@ -4,10 +4,15 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
+import java.util.function.IntFunction;
 import java.io.File;
+import java.text.ParseException;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 
 public class Main {
 
@@ -16,32 +21,27 @@ public class Main {
     
     public static void main(String[] args) throws IOException {
         HashMap<String, String> opts = new HashMap<>();
+        List<String> positional = new ArrayList<>();
 
         try {
             for (int i = 0; i < args.length; i++) {
                 if (args[i].startsWith("-")) {
-                    opts.put(args[i], args[i+1]);
-                    i++; // Skip next arg
+                    if (takesValue(args[i])) {
+                        opts.put(args[i], i + 1 < args.length ? args[i+1] : null);
+                        i++; // Skip next arg
+                    } else {
+                        opts.put(args[i], null);
+                    }
+                } else {
+                    positional.add(args[i]);
                 }
             }
 
-            if (isNumeric(args[0])) {
-                int k = Integer.parseInt(args[0]);
-                if (k > 64 || k < 3) {
-                    System.err.println("ERROR: k must be an integer between 3 and 64.");
-                } else {
-                    //allocate(args[1], k);
-                }
-            } else {
-                if (opts.containsKey("-x")) {
-                    rename(opts.get("-x"));
-                } else if (opts.containsKey("-h")) {
-                    printHelp();
-                    System.exit(0);
-                } else {
-                    printHelp();
-                    System.exit(1);
-                }
+            Recording recording = opts.containsKey("--jfr") ? record(opts.get("--jfr")) : null;
+            try {
+                dispatch(args, opts, positional);
+            } finally {
+                if (recording != null) recording.stop();
             }
         } catch (Exception e) {
             printHelp();
@@ -50,26 +50,85 @@ public class Main {
     }
 
     /**
-    private static void allocate(String filename, int k) {
+     * Runs the operation the options ask for.
+     */
+    private static void dispatch(String[] args, HashMap<String, String> opts, List<String> positional) throws IOException, InterruptedException {
+        if (isNumeric(args[0])) {
+            int k = Integer.parseInt(args[0]);
+            if (k > 64 || k < 3) {
+                System.err.println("ERROR: k must be an integer between 3 and 64.");
+            } else if (opts.containsKey("-b")) {
+                BatchAllocator batch = new BatchAllocator(opts.get("-b"), k,
+                        opts.containsKey("-O"), opts.containsKey("-l"), opts.containsKey("-s"));
+                if (batch.run(positional.subList(1, positional.size())) > 0) System.exit(1);
+            } else if (opts.containsKey("-i")) {
+                new IncrementalAllocator(positional.get(1), opts.get("-i"), k).run();
+            } else {
+                allocate(positional.get(1), k, opts.containsKey("-O"), opts.containsKey("-s"), opts.containsKey("-l"), opts.get("-t"),
+                        opts.containsKey("-c") ? Long.parseLong(opts.get("-c")) : -1, storage(opts.get("-H")),
+                        // The tokens and operations of the two-pass front end would all be on the heap.
+                        opts.containsKey("-r"), opts.containsKey("-f") || opts.containsKey("-H"));
+            }
+        } else {
+            if (opts.containsKey("-x")) {
+                rename(opts.get("-x"));
+            } else if (opts.containsKey("-a")) {
+                profile(opts.get("-a"));
+            } else if (opts.containsKey("-m")) {
+                memory(opts.get("-m"));
+            } else if (opts.containsKey("-e")) {
+                execute(opts.get("-e"));
+            } else if (opts.containsKey("-h")) {
+                printHelp();
+                System.exit(0);
+            } else {
+                printHelp();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Starts a Flight Recorder recording with the default settings and the
+     * compiler's own events (see CompilerEvents). It is written to file when it is
+     * stopped, or when the JVM exits first.
+     */
+    private static Recording record(String file) throws IOException, ParseException {
+        CompilerEvents.enabled = true;
+        Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName("412alloc");
+        recording.setDestination(Paths.get(file));
+        recording.setDumpOnExit(true);
+        recording.start();
+        return recording;
+    }
+
+    /** Allocator. */
+    private static void allocate(String filename, int k, boolean optimize, boolean stats, boolean linearScan, String traceFile,
+                                 long chooseMillis, IntFunction<Column> storage, boolean reorder, boolean fused) {
         try {
             // Read file content
             byte[] bytes = Files.readAllBytes(Paths.get(filename));
             String file = new String(bytes, Charset.defaultCharset());
-            // Run scanner
-            Scanner scanner = new Scanner(file);
-            List<Token> tokens = scanner.addTokens();
-            // Run parser
-            Parser parser = new Parser(tokens);
-            List<Operations> ops = parser.parse();
+            Program program = fused ? parseFused(filename, file, storage) : parse(filename, file, storage);
             // Run allocator
-            if (parser.hasError()) {
-                System.out.println("Parse Unsuccessful");
+            if (program == null) {
+                reportError(-1, "File Parse Error", "Error parsing file: " + filename);
             } else {
-                    Renamer renamer = new Renamer(parser);
-                    renamer.renameSR2LiveRange();
-                    AllocatorWithSpill allocator = new AllocatorWithSpill(renamer, k);
-                    allocator.allocateWithSpill();
-                    allocator.printAllocatedBlock();
+                    if (traceFile != null) program.trace(AllocatorTrace.DEFAULT_CAPACITY);
+                    if (chooseMillis >= 0) program.choose(chooseMillis);
+                    if (reorder) program.reorder();
+                    System.out.print(program.allocate(k, linearScan, optimize));
+                    for (int b = 0; b < program.blockCount(); b++) {
+                        if (reorder) System.err.println(program.reorderReport(b));
+                        if (optimize) System.err.println(program.report(b));
+                        if (stats) System.err.println(program.stats(b).toJson());
+                    }
+                    if (traceFile != null) {
+                        StringBuilder trace = new StringBuilder();
+                        program.dumpTrace(trace);
+                        Files.write(Paths.get(traceFile), trace.toString().getBytes(Charset.defaultCharset()));
+                    }
             }
 
         } catch (IOException e) {
@@ -78,7 +137,89 @@ public class Main {
             System.exit(1);
         }
     }
-    */
+
+
+    /**
+     * Scans the file into tokens and parses them, printing any errors.
+     *
+     * @return The file's program, or null if it does not parse.
+     */
+    private static Program parse(String filename, String file, IntFunction<Column> storage) {
+        Diagnostics diagnostics = new Diagnostics();
+        // Run scanner
+        CompilerEvents.ScanEvent scan = CompilerEvents.beginScan();
+        Scanner scanner = new Scanner(file, diagnostics);
+        List<Token> tokens = scanner.addTokens();
+        CompilerEvents.commitScan(scan, filename, tokens.size());
+        // Run parser
+        CompilerEvents.ParseEvent parse = CompilerEvents.beginParse();
+        Parser parser = new Parser(tokens, diagnostics);
+        List<Operations> ops = parser.parse();
+        CompilerEvents.commitParse(parse, filename, ops.size());
+        diagnostics.flush(System.err);
+        return parser.hasError() ? null : new Program(parser, scanner.symbols(), filename, storage);
+    }
+
+    /**
+     * Scans and parses the file in one pass (see FusedParser), printing any errors.
+     *
+     * @return The file's program, or null if it does not parse.
+     */
+    private static Program parseFused(String filename, String file, IntFunction<Column> storage) {
+        Diagnostics diagnostics = new Diagnostics();
+        CompilerEvents.ParseEvent parse = CompilerEvents.beginParse();
+        FusedParser parser = new FusedParser(file, diagnostics, storage);
+        parser.parse();
+        CompilerEvents.commitParse(parse, filename, parser.operations());
+        diagnostics.flush(System.err);
+        return parser.hasError() ? null : new Program(parser, filename);
+    }
+
+
+    /**
+     * @param where "direct", a directory, or null.
+     * @return The storage for the columns of blocks: direct memory, files mapped from
+     *         the directory, or the Java heap.
+     */
+    private static IntFunction<Column> storage(String where) {
+        if (where == null) return Column.HEAP;
+        if (where.equals("direct")) return Column.direct();
+        return Column.mapped(Paths.get(where));
+    }
+
+
+    /**
+     * Allocates a renamed block with the chosen allocator.
+     *
+     * @param record Receives the allocator's stats.
+     * @param trace Receives the allocator's decisions, or null.
+     * @return The allocated block.
+     */
+    static Block allocateBlock(Renamer renamer, int k, boolean linearScan, Stats record, AllocatorTrace trace) {
+        return allocateBlock(renamer, k, linearScan, AllocatorWithSpill.SPILL_BASE, record, trace);
+    }
+
+    /**
+     * Allocates a renamed block with the chosen allocator, putting its spill slots
+     * from spillBase on.
+     */
+    static Block allocateBlock(Renamer renamer, int k, boolean linearScan, int spillBase, Stats record,
+            AllocatorTrace trace) {
+        if (linearScan) {
+            LinearScanAllocator allocator = new LinearScanAllocator(renamer, k, spillBase);
+            allocator.trace(trace);
+            allocator.allocate();
+            record.put("allocator", "linear-scan");
+            allocator.addStats(record);
+            return allocator.allocated();
+        }
+        AllocatorWithSpill allocator = new AllocatorWithSpill(renamer, k, spillBase);
+        allocator.trace(trace);
+        allocator.allocateWithSpill();
+        record.put("allocator", "bottom-up");
+        allocator.addStats(record);
+        return allocator.allocated();
+    }
 
 
    /** Renamer. */
@@ -89,18 +230,20 @@ public class Main {
             byte[] bytes = Files.readAllBytes(Paths.get(filename));
             String file = new String(bytes, Charset.defaultCharset());
             // Run scanner
-            Scanner scanner = new Scanner(file);
+            Diagnostics diagnostics = new Diagnostics();
+            Scanner scanner = new Scanner(file, diagnostics);
             List<Token> tokens = scanner.addTokens();
             // Run parser
-            Parser parser = new Parser(tokens);
+            Parser parser = new Parser(tokens, diagnostics);
             List<Operations> ops = parser.parse();
+            diagnostics.flush(System.err);
             // Run renamer
             if (parser.hasError()) {
                 reportError(-1, "File Parse Error", "Error parsing file: " + filename);
             } else {
                     Renamer renamer = new Renamer(parser);
-                    //renamer.renameSR2LiveRange();
-                    //renamer.printRenamedBlock();
+                    renamer.renameSR2LiveRange();
+                    renamer.printRenamedBlock();
             }
 
         } catch (IOException e) {
@@ -112,6 +255,118 @@ public class Main {
     }
 
 
+    /** Register-pressure profile. */
+    private static void profile(String filename) {
+
+        try {
+            // Read file content
+            byte[] bytes = Files.readAllBytes(Paths.get(filename));
+            String file = new String(bytes, Charset.defaultCharset());
+            // Run scanner
+            Diagnostics diagnostics = new Diagnostics();
+            Scanner scanner = new Scanner(file, diagnostics);
+            List<Token> tokens = scanner.addTokens();
+            // Run parser
+            Parser parser = new Parser(tokens, diagnostics);
+            parser.parse();
+            diagnostics.flush(System.err);
+            // Run renamer, collecting the profile as it goes
+            if (parser.hasError()) {
+                reportError(-1, "File Parse Error", "Error parsing file: " + filename);
+            } else {
+                    StringBuilder out = new StringBuilder();
+                    new Program(parser, scanner.symbols(), filename).profile(out);
+                    System.out.print(out);
+            }
+
+        } catch (IOException e) {
+            // Use the report function to display the error
+            reportError(-1, "File Read Error", "Error reading file: " + filename);
+            System.exit(1);
+        }
+    }
+
+
+    /** Memory-dependence analysis. */
+    private static void memory(String filename) {
+
+        try {
+            // Read file content
+            byte[] bytes = Files.readAllBytes(Paths.get(filename));
+            String file = new String(bytes, Charset.defaultCharset());
+            // Run scanner
+            Diagnostics diagnostics = new Diagnostics();
+            Scanner scanner = new Scanner(file, diagnostics);
+            List<Token> tokens = scanner.addTokens();
+            // Run parser
+            Parser parser = new Parser(tokens, diagnostics);
+            parser.parse();
+            diagnostics.flush(System.err);
+            // Annotate the memory operations
+            if (parser.hasError()) {
+                reportError(-1, "File Parse Error", "Error parsing file: " + filename);
+            } else {
+                    Block block = Block.from(parser.operations());
+                    block.nameRegisters(scanner.symbols());
+                    new MemoryDependence(block, Block.SR_COLUMN).print();
+            }
+
+        } catch (IOException e) {
+            // Use the report function to display the error
+            reportError(-1, "File Read Error", "Error reading file: " + filename);
+            System.exit(1);
+        }
+    }
+
+
+    /** Execution through generated bytecode. */
+    private static void execute(String filename) {
+
+        try {
+            // Read file content
+            byte[] bytes = Files.readAllBytes(Paths.get(filename));
+            String file = new String(bytes, Charset.defaultCharset());
+            // Run scanner
+            Diagnostics diagnostics = new Diagnostics();
+            Scanner scanner = new Scanner(file, diagnostics);
+            List<Token> tokens = scanner.addTokens();
+            // Run parser
+            Parser parser = new Parser(tokens, diagnostics);
+            parser.parse();
+            diagnostics.flush(System.err);
+            // Compile the block to a class and run it; labels only mark where blocks start
+            if (parser.hasError()) {
+                reportError(-1, "File Parse Error", "Error parsing file: " + filename);
+            } else {
+                    Block block = Block.from(parser.operations());
+                    long start = System.nanoTime();
+                    int[] outputs = new BytecodeCompiler(block).run();
+                    long elapsed = System.nanoTime() - start;
+                    StringBuilder out = new StringBuilder();
+                    for (int value : outputs) out.append(value).append('\n');
+                    System.out.print(out);
+                    Stats record = new Stats(filename);
+                    record.put("operations", block.size());
+                    record.put("estimatedCycles", Latency.cycles(block));
+                    record.put("runMillis", elapsed / 1e6);
+                    System.err.println(record.toJson());
+            }
+
+        } catch (IOException e) {
+            // Use the report function to display the error
+            reportError(-1, "File Read Error", "Error reading file: " + filename);
+            System.exit(1);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            reportError(-1, "Execution Error", "Memory access outside the " + BytecodeCompiler.MEMORY_WORDS * 4
+                    + " bytes of memory in file: " + filename);
+            System.exit(1);
+        } catch (Throwable e) {
+            reportError(-1, "Execution Error", "Could not run file: " + filename + ": " + e);
+            System.exit(1);
+        }
+    }
+
+
     /**
      * Prints the help message which provides information about the
      * available command-line options and their functionality.
@@ -119,13 +374,59 @@ public class Main {
     private static void printHelp() {
         System.out.println("COMP 412 Lab 2: Local Register Allocation");
         System.out.println("Command Syntax:");
-        System.out.println("      412alloc k filename [-h] [-x]");
+        System.out.println("      412alloc k filename [-h] [-x] [-a] [-m] [-e] [-O] [-s] [-l] [-r] [-f] [-c ms] [-t file]");
+        System.out.println("               [-H store] [-i state] [--jfr file]");
+        System.out.println("      412alloc k -b directory filename... [-O] [-s] [-l] [--jfr file]");
         System.out.println("\nRequired arguments:");
         System.out.println("       k        specifies the number of register available");
         System.out.println("       filename the pathname (absolute or relative) to the input file");
         System.out.println("\nOptional flags:");
         System.out.println("       -h        prints this message");
         System.out.println("       -x        performs register renaming");
+        System.out.println("       -a        reports the register pressure and estimated spills of each");
+        System.out.println("                 block as JSON lines");
+        System.out.println("       -m        prints the address of every memory operation and the memory");
+        System.out.println("                 operations it depends on");
+        System.out.println("       -e        runs the block, compiled to JVM bytecode, printing each output");
+        System.out.println("                 value, with the estimated cycle count on stderr");
+        System.out.println("       -O        runs the peephole optimizer on the allocated code and reports");
+        System.out.println("                 the cycles it saved to stderr");
+        System.out.println("       -s        reports the spill code and spill memory of the allocation as");
+        System.out.println("                 JSON on stderr, with the time the allocation took");
+        System.out.println("       -l        allocates with linear scan, which is faster on very large");
+        System.out.println("                 blocks but may insert more spill code");
+        System.out.println("       -r        reorders each block to lower MaxLive before allocating it, and");
+        System.out.println("                 reports MaxLive and spill operations before and after to stderr");
+        System.out.println("       -f        scans and parses in one pass, without a list of tokens; the");
+        System.out.println("                 code and the errors are the same");
+        System.out.println("       -c ms     allocates each block with several allocators in parallel and");
+        System.out.println("                 keeps the one with the fewest estimated cycles, waiting at most");
+        System.out.println("                 ms milliseconds for the others; -s shows the choice");
+        System.out.println("       -t file   writes the allocator's decisions to file as JSON lines: each");
+        System.out.println("                 assignment, eviction with the next use of the evicted value,");
+        System.out.println("                 spill store, reload and rematerialization, with its source line");
+        System.out.println("       -H store  keeps the operation tables off the Java heap: in direct memory");
+        System.out.println("                 if store is 'direct', and otherwise in memory-mapped files in");
+        System.out.println("                 the directory store, for blocks too large for the heap; implies");
+        System.out.println("                 -f, since a list of tokens would be on the heap");
+        System.out.println("       -i state  allocates incrementally, reusing the previous run kept in the");
+        System.out.println("                 file state for the unchanged start of the block; the file");
+        System.out.println("                 must have no labels");
+        System.out.println("       -b dir    allocates every file given, writing each result to a file of");
+        System.out.println("                 the same name in dir; reads and writes overlap with allocation");
+        System.out.println("       --jfr file  records the run with Flight Recorder into file, with an");
+        System.out.println("                 event for each phase of each file and block and for each");
+        System.out.println("                 block's spill code, in the ILOC category");
+    }
+
+
+    /**
+     * @return true if the flag is followed by a value, such as a file name.
+     */
+    private static boolean takesValue(String flag) {
+        return flag.equals("-x") || flag.equals("-a") || flag.equals("-m") || flag.equals("-e") || flag.equals("-i") || flag.equals("-b")
+                || flag.equals("-t") || flag.equals("-c") || flag.equals("-H")
+                || flag.equals("--jfr");
     }
 
 
@@ -171,16 +472,12 @@ public class Main {
      * @param msg          The error message to be displayed.
      */
     private static void reportError(int line, String errorContext, String msg) {
-        // Split the message by newline to handle multi-line error messages
-        String[] msgLines = msg.split("\n");
-
-        // Print the first line with "ERROR", line number, and colon
-        System.err.println("ERROR " + line + ": " + msgLines[0] + " " + errorContext);
+        // Only the first line of a multi-line message gets the prefix and context
+        int end = msg.indexOf('\n');
+        String first = end < 0 ? msg : msg.substring(0, end);
+        String rest = end < 0 ? "" : msg.substring(end + 1) + "\n";
 
-        // Print any additional lines without the prefix
-        for (int i = 1; i < msgLines.length; i++) {
-            System.err.println(msgLines[i]);
-        }
+        System.err.print("ERROR " + line + ": " + first + " " + errorContext + "\n" + rest);
 
         hasError = true;
     }
@@ -0,0 +1,316 @@
+package src.lab1;
+
+import java.util.Arrays;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Memory-dependence analysis for a block. A forward pass propagates the constants
+ * set by loadI through add, sub, mult, lshift and rshift, so that every load, store
+ * and output is marked with the exact address it touches, or as unknown. Memory
+ * dependence edges are then built only between operations that may touch the same
+ * word:
+ * <ul>
+ *   <li>RAW: a load or output after a store (read after write),</li>
+ *   <li>WAR: a store after a load or output (write after read),</li>
+ *   <li>WAW: a store after a store (write after write),</li>
+ *   <li>IO: an output after an output, which must keep its order.</li>
+ * </ul>
+ * Two known addresses alias only if they are equal; an unknown address aliases
+ * everything. Addresses are assumed word aligned, so a known address that is not
+ * a multiple of 4 is treated as unknown.
+ *
+ * Each operation is linked only to the nearest operations it must follow, so the
+ * number of edges stays close to linear. An unknown store acts as a barrier that
+ * every later access follows.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class MemoryDependence {
+    static final int UNKNOWN = -2;
+
+    static final int RAW = 0;
+    static final int WAR = 1;
+    static final int WAW = 2;
+    static final int IO = 3;
+
+    private static final int NONE = Block.INVALID;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private final Block block;
+    private final int column;
+
+    // Address of each memory operation, UNKNOWN, or NONE for other operations.
+    private final int[] address;
+    // Edges in compressed rows: the predecessors of operation i are edges[edgeStart[i] .. edgeStart[i+1]).
+    private final int[] edgeStart;
+    private final IntList edges = new IntList();
+    private final IntList kinds = new IntList();
+
+    // Per known address: the last store to it and the reads since then, linked through nextRead.
+    private int[] keys = new int[64];
+    private int[] lastStore = new int[64];
+    private int[] readHead = new int[64];
+    private int[] epochOf = new int[64];
+    private int slots = 0;
+    private int epoch = 0;
+    private final int[] nextRead;
+
+    // Accesses to unknown addresses.
+    private int lastUnknownStore = NONE;
+    private int unknownReadHead = NONE;
+    private int lastOutput = NONE;
+    // Slots of the known addresses accessed since the last unknown store.
+    private final IntList touched = new IntList();
+
+    /**
+     * Analyzes a block.
+     *
+     * @param block The block to analyze.
+     * @param column Which register column to read: Block.SR_COLUMN, VR_COLUMN or PR_COLUMN.
+     */
+    MemoryDependence(Block block, int column) {
+        this.block = block;
+        this.column = column;
+        int n = block.size();
+        address = new int[n];
+        edgeStart = new int[n + 1];
+        nextRead = new int[n];
+        Arrays.fill(keys, EMPTY);
+        propagateConstants();
+        buildEdges();
+    }
+
+    /**
+     * Marks every memory operation with its address, tracking known register values.
+     */
+    private void propagateConstants() {
+        int registers = 0;
+        for (int i = 0; i < block.size(); i++) {
+            for (int slot = 0; slot < Block.SLOTS; slot++) {
+                if (Block.isRegister(block.opcode(i), slot)) {
+                    registers = Math.max(registers, block.register(i, slot, column) + 1);
+                }
+            }
+        }
+        boolean[] known = new boolean[registers];
+        int[] value = new int[registers];
+
+        for (int i = 0; i < block.size(); i++) {
+            Category op = block.opcode(i);
+            address[i] = NONE;
+            switch (op) {
+                case LOADI:
+                    known[reg(i, 2)] = true;
+                    value[reg(i, 2)] = block.SR(i, 0);
+                    break;
+                case LOAD:
+                    address[i] = known[reg(i, 0)] ? aligned(value[reg(i, 0)]) : UNKNOWN;
+                    known[reg(i, 2)] = false;
+                    break;
+                case STORE:
+                    address[i] = known[reg(i, 1)] ? aligned(value[reg(i, 1)]) : UNKNOWN;
+                    break;
+                case OUTPUT:
+                    address[i] = aligned(block.SR(i, 0));
+                    break;
+                case NOP:
+                    break;
+                default: {
+                    int a = reg(i, 0);
+                    int b = reg(i, 1);
+                    int d = reg(i, 2);
+                    if (known[a] && known[b]) {
+                        value[d] = evaluate(op, value[a], value[b]);
+                        known[d] = true;
+                    } else {
+                        known[d] = false;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private int reg(int i, int slot) {
+        return block.register(i, slot, column);
+    }
+
+    private static int aligned(int a) {
+        return a >= 0 && (a & 3) == 0 ? a : UNKNOWN;
+    }
+
+    /**
+     * Computes op on two values with the simulator's 32-bit arithmetic.
+     */
+    static int evaluate(Category op, int a, int b) {
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MULT: return a * b;
+            case LSHIFT: return a << b;
+            case RSHIFT: return a >> b;
+            default: throw new IllegalArgumentException("Not arithmetic: " + op);
+        }
+    }
+
+    private void buildEdges() {
+        for (int i = 0; i < block.size(); i++) {
+            edgeStart[i] = edges.size();
+            Category op = block.opcode(i);
+            if (address[i] == NONE) continue;
+            boolean isStore = op == STORE;
+            if (address[i] == UNKNOWN) {
+                if (isStore) unknownStore(i); else unknownRead(i);
+            } else {
+                int s = slot(address[i]);
+                if (isStore) knownStore(i, s); else knownRead(i, s);
+            }
+            if (op == Category.OUTPUT) {
+                if (lastOutput != NONE) edge(lastOutput, IO);
+                lastOutput = i;
+            }
+        }
+        edgeStart[block.size()] = edges.size();
+    }
+
+    private void knownStore(int i, int s) {
+        if (lastStore[s] != NONE) {
+            edge(lastStore[s], WAW);
+        } else if (lastUnknownStore != NONE) {
+            edge(lastUnknownStore, WAW);
+        }
+        for (int r = readHead[s]; r != NONE; r = nextRead[r]) edge(r, WAR);
+        for (int r = unknownReadHead; r != NONE; r = nextRead[r]) edge(r, WAR);
+        lastStore[s] = i;
+        readHead[s] = NONE;
+    }
+
+    private void knownRead(int i, int s) {
+        if (lastStore[s] != NONE) {
+            edge(lastStore[s], RAW);
+        } else if (lastUnknownStore != NONE) {
+            edge(lastUnknownStore, RAW);
+        }
+        nextRead[i] = readHead[s];
+        readHead[s] = i;
+    }
+
+    private void unknownStore(int i) {
+        if (lastUnknownStore != NONE) edge(lastUnknownStore, WAW);
+        for (int t = 0; t < touched.size(); t++) {
+            int s = touched.get(t);
+            if (lastStore[s] != NONE) edge(lastStore[s], WAW);
+            for (int r = readHead[s]; r != NONE; r = nextRead[r]) edge(r, WAR);
+        }
+        for (int r = unknownReadHead; r != NONE; r = nextRead[r]) edge(r, WAR);
+        // Everything before is now ordered behind this store.
+        lastUnknownStore = i;
+        unknownReadHead = NONE;
+        touched.clear();
+        epoch++;
+    }
+
+    private void unknownRead(int i) {
+        if (lastUnknownStore != NONE) edge(lastUnknownStore, RAW);
+        for (int t = 0; t < touched.size(); t++) {
+            int s = touched.get(t);
+            if (lastStore[s] != NONE) edge(lastStore[s], RAW);
+        }
+        nextRead[i] = unknownReadHead;
+        unknownReadHead = i;
+    }
+
+    private void edge(int from, int kind) {
+        edges.add(from);
+        kinds.add(kind);
+    }
+
+    /**
+     * Finds the slot of a known address, starting it afresh if it predates the last barrier.
+     */
+    private int slot(int a) {
+        int mask = keys.length - 1;
+        int h = a * 0x9E3779B9;
+        int s = (h ^ (h >>> 16)) & mask;
+        while (keys[s] != EMPTY && keys[s] != a) s = (s + 1) & mask;
+        if (keys[s] == EMPTY) {
+            if ((slots + 1) * 2 > keys.length) {
+                rehash();
+                return slot(a);
+            }
+            keys[s] = a;
+            slots++;
+            epochOf[s] = epoch - 1;
+        }
+        if (epochOf[s] != epoch) {
+            epochOf[s] = epoch;
+            lastStore[s] = NONE;
+            readHead[s] = NONE;
+            touched.add(s);
+        }
+        return s;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldStore = lastStore;
+        int[] oldHead = readHead;
+        int[] oldEpoch = epochOf;
+        int capacity = keys.length * 2;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        lastStore = new int[capacity];
+        readHead = new int[capacity];
+        epochOf = new int[capacity];
+        int mask = capacity - 1;
+        // The slots move, so the touched ones are found again by their epoch.
+        touched.clear();
+        for (int o = 0; o < oldKeys.length; o++) {
+            if (oldKeys[o] == EMPTY) continue;
+            int h = oldKeys[o] * 0x9E3779B9;
+            int s = (h ^ (h >>> 16)) & mask;
+            while (keys[s] != EMPTY) s = (s + 1) & mask;
+            keys[s] = oldKeys[o];
+            lastStore[s] = oldStore[o];
+            readHead[s] = oldHead[o];
+            epochOf[s] = oldEpoch[o];
+            if (epochOf[s] == epoch) touched.add(s);
+        }
+    }
+
+    /**
+     * @return The address operation i touches, UNKNOWN, or Block.INVALID if it does not touch memory.
+     */
+    int address(int i) {
+        return address[i];
+    }
+
+    int firstEdge(int i) { return edgeStart[i]; }
+    int endEdge(int i) { return edgeStart[i + 1]; }
+    int edgeFrom(int e) { return edges.get(e); }
+    int edgeKind(int e) { return kinds.get(e); }
+
+    /**
+     * Prints the block annotated with the address of each memory operation and the
+     * operations it must follow.
+     */
+    void print() {
+        StringBuilder out = new StringBuilder();
+        String[] names = {"raw", "war", "waw", "io"};
+        for (int i = 0; i < block.size(); i++) {
+            block.appendOperation(out, i, column);
+            if (address[i] != NONE) {
+                out.append("\t// ").append(i).append(": address ");
+                if (address[i] == UNKNOWN) out.append("unknown"); else out.append(address[i]);
+                for (int e = edgeStart[i]; e < edgeStart[i + 1]; e++) {
+                    out.append(e == edgeStart[i] ? ", after " : " ").append(edges.get(e))
+                       .append('(').append(names[kinds.get(e)]).append(')');
+                }
+            }
+            out.append('\n');
+        }
+        System.out.print(out);
+    }
+}
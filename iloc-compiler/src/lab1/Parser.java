@@ -27,14 +27,19 @@ class Parser {
     private int current = 0;  // Current position in the token list.
     private boolean hasError = false;  // Flag to indicate if any parsing errors occurred.
     private Token currTokenLine;
+    private final Diagnostics diagnostics;  // Where errors are reported.
+    private final List<Token> labels = new ArrayList<>();  // Labels that start blocks.
+    private final IntList labelPositions = new IntList();  // Index in opList of the first operation after each label.
 
     /**
      * Constructs a new parser with the given list of tokens.
      *
      * @param tokens The list of tokens to be parsed.
+     * @param diagnostics Where errors are reported.
      */
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, Diagnostics diagnostics) {
         this.tokens = tokens;
+        this.diagnostics = diagnostics;
         //System.out.println("Token list: " + tokens);
         opList = new ArrayList<>();
     }
@@ -46,6 +51,27 @@ class Parser {
         return hasError;
     }
 
+    /**
+     * @return The list of operations parsed so far.
+     */
+    List<Operations> operations() {
+        return opList;
+    }
+
+    /**
+     * @return The labels found, in order; each starts a block.
+     */
+    List<Token> labels() {
+        return labels;
+    }
+
+    /**
+     * @return The index in operations() of the first operation of the block that label i starts.
+     */
+    int labelPosition(int i) {
+        return labelPositions.get(i);
+    }
+
     /**
      * Parses the provided tokens into operations.
      *
@@ -88,9 +114,15 @@ class Parser {
                     addInstruction(nop());
                     break;
 
+                // If the token is a label, the operations after it form a new block.
+                case LABEL:
+                    labels.add(advance());
+                    labelPositions.add(opList.size());
+                    break;
+
                 // If the token doesn't match any of the expected operation types, report an error.
                 default:
-                    reportError("Unexpected token");
+                    reportError(Diagnostics.Code.UNEXPECTED_TOKEN);
                     break;
             }
         }
@@ -114,19 +146,19 @@ class Parser {
         Token operator = advance();
 
         // Expect and capture the first source register token.
-        Token first = consumeToken(REGISTER, "Expected source register 1 but found " + peek().lexeme);
+        Token first = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER_1);
 
         // Expect a comma token separating the source registers.
-        consumeToken(COMMA, "Expected a comma after register name");
+        consumeToken(COMMA, Diagnostics.Code.EXPECTED_COMMA);
 
         // Expect and capture the second source register token.
-        Token second = consumeToken(REGISTER, "Expected source register 2 but found " + peek().lexeme);
+        Token second = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER_2);
 
         // Expect the arrow token (=>) that precedes the destination register.
-        consumeToken(ARROW, "Expected => after register name");
+        consumeToken(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_REGISTER);
 
         // Expect and capture the destination register token.
-        Token third = consumeToken(REGISTER, "Expected destination register but found " + peek().lexeme);
+        Token third = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
 
         // If any of the captured tokens are error tokens, return null.
         if (first.category == ERROR || second.category == ERROR || third.category == ERROR) return null;
@@ -169,13 +201,13 @@ class Parser {
         Token operator = advance();
         
         // Expect and capture the source register token.
-        Token first = consumeToken(REGISTER, "Expected source register but found " + peek().lexeme);
+        Token first = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_SOURCE_REGISTER);
         
         // Expect the arrow token (=>) that separates source and destination registers.
-        consumeToken(ARROW, "Expected => after register name");
+        consumeToken(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_REGISTER);
         
         // Expect and capture the destination register token.
-        Token second = consumeToken(REGISTER, "Expected destination register but found " + peek().lexeme);
+        Token second = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
         
         // If any of the captured tokens are error tokens, return null to indicate a parsing error.
         if (first.category == ERROR || second.category == ERROR) return null;
@@ -200,13 +232,13 @@ class Parser {
         Token operator = advance();
         
         // Expect and capture the number token which represents the value to be loaded.
-        Token first = consumeToken(NUMBER, "Expected number but found " + peek().lexeme);
+        Token first = consumeToken(NUMBER, Diagnostics.Code.EXPECTED_NUMBER);
         
         // Expect the arrow token (=>) that separates the value and the destination register.
-        consumeToken(ARROW, "Expected => after number value");
+        consumeToken(ARROW, Diagnostics.Code.EXPECTED_ARROW_AFTER_NUMBER);
         
         // Expect and capture the destination register token where the value will be loaded into.
-        Token second = consumeToken(REGISTER, "Expected destination register but found" + peek().lexeme);
+        Token second = consumeToken(REGISTER, Diagnostics.Code.EXPECTED_DESTINATION_REGISTER);
         
         // If any of the captured tokens are error tokens, return null to indicate a parsing error.
         if (first.category == ERROR || second.category == ERROR) return null;
@@ -230,7 +262,7 @@ class Parser {
         Token operator = advance();
         
         // Expect and capture the number token which represents the value to be output.
-        Token first = consumeToken(NUMBER, "Expected number but found " + peek().lexeme);
+        Token first = consumeToken(NUMBER, Diagnostics.Code.EXPECTED_NUMBER);
         
         // If the captured number token is an error token, return null to indicate a parsing error.
         if (first.category == ERROR) return null;
@@ -254,13 +286,13 @@ class Parser {
      * Otherwise, reports an error.
      * 
      * @param type The expected token type.
-     * @param msg The error message to report if the token type doesn't match.
+     * @param code The error to report if the token type doesn't match.
      * @return The token consumed or an error token.
      */
-    private Token consumeToken(Category type, String msg) {
+    private Token consumeToken(Category type, Diagnostics.Code code) {
         //System.out.println(type);
         if (checkType(type)) return advance();
-        reportError(msg);
+        reportError(code);
         return new Token(ERROR, peek().lexeme, peek().line);
     }
 
@@ -328,11 +360,11 @@ class Parser {
      * Flags that a parsing error has occurred, reports the error, and then attempts 
      * to continue parsing by advancing to the next token.
      * 
-     * @param msg The error message to be reported.
+     * @param code The error to be reported.
      */
-    private void reportError(String msg) {
+    private void reportError(Diagnostics.Code code) {
         hasError = true;
-        Main.error(currTokenLine, msg);
+        diagnostics.parseError(code, currTokenLine, current, peek());
         skipToNextLine();
     }
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package src.lab1;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * Peephole optimizer for allocated code. A forward pass over the operations keeps,
+ * for each physical register, the constant it holds and the memory word it is
+ * known to equal. With those it drops
+ * <ul>
+ *   <li>nops,</li>
+ *   <li>a loadI into a register that already holds the constant,</li>
+ *   <li>a load into a register that already holds the word, such as a reload
+ *       of a value just stored from the same register,</li>
+ * </ul>
+ * and folds an arithmetic operation on two known constants, typically an address
+ * computation, into a single loadI. A backward pass then removes loadIs and
+ * arithmetic whose results are never used, which is what makes the folding pay.
+ *
+ * Savings are measured with the simulator's latency model.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Peephole {
+    private static final int INVALID = Block.INVALID;
+
+    private final Block block;
+    private final int k;
+
+    // What the forward pass knows about each register.
+    private final boolean[] known;
+    private final int[] constant;
+    private final boolean[] holdsWord;
+    private final int[] word;
+
+    private long cyclesBefore;
+    private long cyclesAfter;
+    private int removed;
+
+    /**
+     * @param block The allocated block; registers are read from its PR column.
+     * @param k The number of physical registers the block was allocated to.
+     */
+    Peephole(Block block, int k) {
+        this.block = block;
+        this.k = k;
+        known = new boolean[k];
+        constant = new int[k];
+        holdsWord = new boolean[k];
+        word = new int[k];
+    }
+
+    /**
+     * @return The optimized block.
+     */
+    Block optimize() {
+        Block forward = forwardPass();
+        Block result = removeDead(forward);
+        cyclesBefore = Latency.cycles(block);
+        cyclesAfter = Latency.cycles(result);
+        removed = block.size() - result.size();
+        return result;
+    }
+
+    private Block forwardPass() {
+        Block out = block.emptyLike(block.size());
+        for (int i = 0; i < block.size(); i++) {
+            Category op = block.opcode(i);
+            switch (op) {
+                case NOP:
+                    break;
+                case LOADI:
+                    loadI(out, block.SR(i, 0), block.PR(i, 2), block.line(i), i);
+                    break;
+                case LOAD: {
+                    int a = block.PR(i, 0);
+                    int d = block.PR(i, 2);
+                    if (known[a] && holdsWord[d] && word[d] == constant[a]) break;
+                    out.append(block, i);
+                    boolean addressKnown = known[a];
+                    int address = constant[a];
+                    write(d);
+                    if (addressKnown) {
+                        holdsWord[d] = true;
+                        word[d] = address;
+                    }
+                    break;
+                }
+                case STORE: {
+                    int v = block.PR(i, 0);
+                    int a = block.PR(i, 1);
+                    out.append(block, i);
+                    if (known[a]) {
+                        // Forget registers copied from any word the store overlaps.
+                        for (int p = 0; p < k; p++) {
+                            if (holdsWord[p] && Math.abs(word[p] - constant[a]) < 4) holdsWord[p] = false;
+                        }
+                        holdsWord[v] = true;
+                        word[v] = constant[a];
+                    } else {
+                        for (int p = 0; p < k; p++) holdsWord[p] = false;
+                    }
+                    break;
+                }
+                case OUTPUT:
+                    out.append(block, i);
+                    break;
+                default: {
+                    int a = block.PR(i, 0);
+                    int b = block.PR(i, 1);
+                    if (known[a] && known[b]) {
+                        long folded = fold(op, constant[a], constant[b]);
+                        if (folded >= 0 && folded <= Integer.MAX_VALUE) {
+                            loadI(out, (int) folded, block.PR(i, 2), block.line(i), INVALID);
+                            break;
+                        }
+                    }
+                    out.append(block, i);
+                    write(block.PR(i, 2));
+                    break;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Emits loadI c => d unless d already holds c.
+     *
+     * @param original The operation being copied, or INVALID for a folded one.
+     */
+    private void loadI(Block out, int c, int d, int line, int original) {
+        if (known[d] && constant[d] == c) return;
+        int o;
+        if (original != INVALID) {
+            o = out.append(block, original);
+        } else {
+            o = out.add(LOADI, line);
+            out.setSR(o, 0, c);
+            out.setPR(o, 2, d);
+        }
+        write(d);
+        known[d] = true;
+        constant[d] = c;
+    }
+
+    /**
+     * Forgets what was known about a register that is overwritten.
+     */
+    private void write(int p) {
+        known[p] = false;
+        holdsWord[p] = false;
+    }
+
+    /**
+     * Computes op on two constants as the simulator would, or returns -1 if the
+     * result cannot be written as a loadI.
+     */
+    private static long fold(Category op, int a, int b) {
+        switch (op) {
+            case ADD: return (long) a + b;
+            case SUB: return (long) a - b;
+            case MULT: return (long) a * b;
+            case LSHIFT: return b < 31 ? (long) a << b : -1;
+            case RSHIFT: return b < 31 ? a >> b : -1;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Removes loadIs and arithmetic whose results are dead. No register is live at
+     * the end of a block, so a single backward pass with one bit per register does it.
+     */
+    private Block removeDead(Block in) {
+        boolean[] dead = new boolean[in.size()];
+        long live = 0;
+        int kept = 0;
+        for (int i = in.size() - 1; i >= 0; i--) {
+            Category op = in.opcode(i);
+            if (Block.isDef(op, 2)) {
+                long bit = 1L << in.PR(i, 2);
+                if ((live & bit) == 0 && op != LOAD) {
+                    dead[i] = true;
+                    continue;
+                }
+                live &= ~bit;
+            }
+            for (int slot = 0; slot < 2; slot++) {
+                if (Block.isUse(op, slot)) live |= 1L << in.PR(i, slot);
+            }
+            kept++;
+        }
+        Block out = in.emptyLike(kept);
+        for (int i = 0; i < in.size(); i++) {
+            if (!dead[i]) out.append(in, i);
+        }
+        return out;
+    }
+
+    long cyclesBefore() {
+        return cyclesBefore;
+    }
+
+    long cyclesAfter() {
+        return cyclesAfter;
+    }
+
+    /**
+     * @return A one-line summary of what the pass saved.
+     */
+    String report(String name) {
+        return name + ": peephole removed " + removed + " operations, "
+                + cyclesBefore + " -> " + cyclesAfter + " cycles (saved " + (cyclesBefore - cyclesAfter) + ")";
+    }
+}
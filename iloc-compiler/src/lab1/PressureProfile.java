@@ -0,0 +1,201 @@
+package src.lab1;
+
+import java.util.Arrays;
+
+/**
+ * Register-pressure profile of a block, collected during the renamer's backward
+ * pass. For every operation the renamer reports how many registers it needs, and
+ * for every live range where it ends and where it starts. From those the profile
+ * keeps MaxLive, a histogram of the number of live values per operation, the
+ * longest live ranges, and how often the pressure climbs through each level.
+ *
+ * The climbs give an estimate of the evictions for a given k: with u usable
+ * registers, every step the pressure takes above u forces one more value out of
+ * its register, so the estimate is the number of climbs through levels above u.
+ * It is not a bound either way. A value that is reloaded may be evicted again
+ * before its last use, which the climbs do not see, so the allocator can store
+ * more; and a rematerialized value needs no store, so it can store fewer. Like
+ * the rest of the profile it needs only the single sweep and O(MaxLive) work per
+ * k afterwards.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class PressureProfile {
+    // How many of the longest live ranges are reported.
+    private static final int LONGEST = 10;
+
+    private final Block block;
+    private final SymbolTable symbols;
+    private final IntList histogram = new IntList();
+    private final IntList climbs = new IntList();
+    private final IntList lastUse = new IntList();
+    private final IntList VRToSR = new IntList();
+    private int maxLive = 0;
+    // Pressure of the operation after the current one (the previous one reported).
+    private int later = 0;
+
+    // Min-heap over the longest live ranges seen so far, keyed by length.
+    private final int[] heapLength = new int[LONGEST];
+    private final int[] heapVR = new int[LONGEST];
+    private final int[] heapDef = new int[LONGEST];
+    private final int[] heapEnd = new int[LONGEST];
+    private int heapSize = 0;
+
+    /**
+     * @param block The block being renamed.
+     * @param symbols The symbol table its registers were interned in.
+     */
+    PressureProfile(Block block, SymbolTable symbols) {
+        this.block = block;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Records the number of registers operation i needs. Called back to front.
+     */
+    void operation(int i, int live) {
+        while (histogram.size() <= live) histogram.add(0);
+        histogram.set(live, histogram.get(live) + 1);
+        maxLive = Math.max(maxLive, live);
+        // Walking forward, the pressure climbs from live to later.
+        climb(live, later);
+        later = live;
+    }
+
+    /**
+     * Counts one climb through every level in (from, to].
+     */
+    private void climb(int from, int to) {
+        while (climbs.size() <= to) climbs.add(0);
+        for (int level = from + 1; level <= to; level++) climbs.set(level, climbs.get(level) + 1);
+    }
+
+    /**
+     * Records the last use of a live range; the renamer meets it first.
+     */
+    void rangeEnd(int VR, int SR, int i) {
+        while (lastUse.size() <= VR) {
+            lastUse.add(Block.INVALID);
+            VRToSR.add(Block.INVALID);
+        }
+        lastUse.set(VR, i);
+        VRToSR.set(VR, SR);
+    }
+
+    /**
+     * Records the definition of a live range, or INVALID for a value live on entry.
+     */
+    void rangeStart(int VR, int def) {
+        int end = lastUse.get(VR);
+        int length = end - Math.max(def, 0);
+        if (heapSize < LONGEST) {
+            heapLength[heapSize] = length;
+            heapVR[heapSize] = VR;
+            heapDef[heapSize] = def;
+            heapEnd[heapSize] = end;
+            siftUp(heapSize++);
+        } else if (length > heapLength[0]) {
+            heapLength[0] = length;
+            heapVR[0] = VR;
+            heapDef[0] = def;
+            heapEnd[0] = end;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0 && heapLength[(i - 1) / 2] > heapLength[i]) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && heapLength[left] < heapLength[smallest]) smallest = left;
+            if (right < heapSize && heapLength[right] < heapLength[smallest]) smallest = right;
+            if (smallest == i) return;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int t = heapLength[a]; heapLength[a] = heapLength[b]; heapLength[b] = t;
+        t = heapVR[a]; heapVR[a] = heapVR[b]; heapVR[b] = t;
+        t = heapDef[a]; heapDef[a] = heapDef[b]; heapDef[b] = t;
+        t = heapEnd[a]; heapEnd[a] = heapEnd[b]; heapEnd[b] = t;
+    }
+
+    int maxLive() {
+        return maxLive;
+    }
+
+    /**
+     * Estimates how many values are evicted when allocating with k registers.
+     */
+    int predictedSpills(int k) {
+        if (maxLive <= k) return 0;
+        int usable = k - 1;  // One register is reserved for spill addresses.
+        int spills = 0;
+        for (int level = usable + 1; level < climbs.size(); level++) spills += climbs.get(level);
+        // The first operation climbs from an empty register file.
+        if (block.size() > 0) spills += Math.max(0, later - Math.max(usable, 0));
+        return spills;
+    }
+
+    /**
+     * Formats the profile as a JSON object.
+     *
+     * @param name The name of the block, usually its file.
+     * @return The profile as one line of JSON.
+     */
+    String toJson(String name) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\"block\":\"").append(escape(name)).append('"');
+        out.append(",\"operations\":").append(block.size());
+        out.append(",\"maxLive\":").append(maxLive);
+
+        out.append(",\"liveHistogram\":[");
+        for (int live = 0; live < histogram.size(); live++) {
+            if (live > 0) out.append(',');
+            out.append(histogram.get(live));
+        }
+        out.append(']');
+
+        // Longest first; defLine 0 marks a value that is live on entry to the block.
+        Integer[] order = new Integer[heapSize];
+        for (int h = 0; h < heapSize; h++) order[h] = h;
+        Arrays.sort(order, (a, b) -> heapLength[b] - heapLength[a]);
+        out.append(",\"longestLiveRanges\":[");
+        for (int h = 0; h < heapSize; h++) {
+            int e = order[h];
+            int sr = VRToSR.get(heapVR[e]);
+            if (h > 0) out.append(',');
+            out.append("{\"vr\":").append(heapVR[e]);
+            // The address of a home load or store has no source register.
+            if (sr < symbols.registerCount()) out.append(",\"register\":\"").append(symbols.registerName(sr)).append('"');
+            out.append(",\"length\":").append(heapLength[e])
+               .append(",\"defLine\":").append(heapDef[e] >= 0 ? block.line(heapDef[e]) : 0)
+               .append(",\"lastUseLine\":").append(block.line(heapEnd[e]))
+               .append('}');
+        }
+        out.append(']');
+
+        out.append(",\"predictedSpills\":{");
+        for (int k = 3; k <= 64; k++) {
+            if (k > 3) out.append(',');
+            out.append('"').append(k).append("\":").append(predictedSpills(k));
+        }
+        out.append("}}");
+        return out.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,433 @@
+package src.lab1;
+
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
+
+/**
+ * A file of one or more blocks, separated by labels. Each block is renamed and
+ * allocated on its own, and the blocks are allocated in parallel, so a large file
+ * costs the sum of its blocks rather than one giant interference problem.
+ *
+ * Control falls from each block into the next, so a value may be defined in one
+ * block and used in a later one. Such values cross block boundaries in memory:
+ * every source register has a home word in the region above the memory a program
+ * may address, which it can therefore never overwrite. With R source registers,
+ * that region is laid out as
+ * <pre>
+ *     HOME_BASE + 4 * id          the home of register id, for id in [0, R)
+ *     HOME_BASE + 4 * R and up    the spill slots of every block
+ * </pre>
+ * where HOME_BASE is AllocatorWithSpill.SPILL_BASE. A file without labels has no
+ * homes, and its spill slots start at HOME_BASE. Before allocation,
+ * <ul>
+ *   <li>a block stores, at its end, each register it defines that is live out of
+ *       it, and</li>
+ *   <li>a block loads, at its start, each register it uses before defining it
+ *       that is live into it.</li>
+ * </ul>
+ * Live-out sets are computed with one backward pass over the blocks, from the
+ * registers each block uses before defining (upward exposed) and defines. A
+ * register that is never defined before a boundary is not live across it.
+ *
+ * A file without labels is a single block and is allocated exactly as before.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Program {
+    static final int HOME_BASE = AllocatorWithSpill.SPILL_BASE;
+
+    private final String name;
+    private final SymbolTable symbols;
+    private final Block[] blocks;
+    // The label that starts each block, or null for operations before the first label.
+    private final Token[] labels;
+    // First address of the spill slots, above the homes.
+    private final int spillBase;
+    // Per block, the source registers live on exit from it, used before being
+    // defined in it, and defined in it.
+    private final boolean[][] liveOut;
+    private boolean[][] exposed;
+    private boolean[][] defined;
+
+    private final Stats[] stats;
+    private final String[] reports;
+    // Per block, the allocator's decisions and the renamer they refer to, when tracing.
+    private AllocatorTrace[] traces;
+    private Renamer[] renamers;
+    private int traceCapacity;
+    // Time each block may spend choosing among allocators, or -1 to use the one asked for.
+    private long chooseMillis = -1;
+    // Per block, what reordering did, or null if blocks are not reordered.
+    private String[] reorderReports;
+    // Whether blocks are renamed and allocated in their thread's CompilationContext.
+    private boolean reuseMemory = false;
+
+    /**
+     * Splits the operations of a parser into blocks and computes their live-out sets.
+     *
+     * @param parser A parser that has already parsed its input without errors.
+     * @param symbols The symbol table the registers were interned in.
+     * @param name The name of the file, used to name the blocks in reports.
+     */
+    Program(Parser parser, SymbolTable symbols, String name) {
+        this(parser, symbols, name, Column.HEAP);
+    }
+
+    /**
+     * Splits the operations of a parser into blocks kept in the given storage, and
+     * computes their live-out sets.
+     *
+     * @param storage Makes the columns of the blocks (see Column).
+     */
+    Program(Parser parser, SymbolTable symbols, String name, IntFunction<Column> storage) {
+        this(symbols, name, split(parser, storage), labels(parser));
+    }
+
+    /**
+     * Takes the blocks of a fused front end and computes their live-out sets.
+     *
+     * @param parser A front end that has already parsed its input without errors.
+     * @param name The name of the file, used to name the blocks in reports.
+     */
+    Program(FusedParser parser, String name) {
+        this(parser.symbols(), name, blocks(parser), labels(parser));
+    }
+
+    private Program(SymbolTable symbols, String name, Block[] blocks, Token[] labels) {
+        this.name = name;
+        this.symbols = symbols;
+        this.blocks = blocks;
+        this.labels = labels;
+        int count = blocks.length;
+        stats = new Stats[count];
+        reports = new String[count];
+
+        int registers = symbols.registerCount();
+        spillBase = count > 1 ? home(registers) : AllocatorWithSpill.SPILL_BASE;
+        liveOut = new boolean[count][];
+        if (count > 1) {
+            computeLiveOut(registers);
+            for (int b = 0; b < count; b++) blocks[b] = withHomes(b, registers);
+        }
+    }
+
+    /**
+     * @return Whether the operations before the first label form a block: they do
+     *         if there are any, or if there are no labels, so that there is a block.
+     */
+    private static boolean leadingBlock(Parser parser) {
+        return parser.labels().isEmpty() || parser.labelPosition(0) > 0;
+    }
+
+    private static boolean leadingBlock(FusedParser parser) {
+        return parser.labels().isEmpty() || parser.blocks().get(0).size() > 0;
+    }
+
+    /**
+     * Splits the operations of a parser into blocks.
+     */
+    private static Block[] split(Parser parser, IntFunction<Column> storage) {
+        List<Operations> ops = parser.operations();
+        int labels = parser.labels().size();
+        int first = leadingBlock(parser) ? 1 : 0;
+        Block[] blocks = new Block[labels + first];
+        for (int b = 0; b < blocks.length; b++) {
+            int label = b - first;
+            int start = label < 0 ? 0 : parser.labelPosition(label);
+            int end = label + 1 < labels ? parser.labelPosition(label + 1) : ops.size();
+            blocks[b] = Block.from(ops.subList(start, end), storage);
+        }
+        return blocks;
+    }
+
+    private static Block[] blocks(FusedParser parser) {
+        List<Block> found = parser.blocks();
+        return found.subList(leadingBlock(parser) ? 0 : 1, found.size()).toArray(new Block[0]);
+    }
+
+    private static Token[] labels(Parser parser) {
+        return labels(parser.labels(), leadingBlock(parser));
+    }
+
+    private static Token[] labels(FusedParser parser) {
+        return labels(parser.labels(), leadingBlock(parser));
+    }
+
+    /**
+     * @return The label that starts each block, or null for operations before the first label.
+     */
+    private static Token[] labels(List<Token> found, boolean leadingBlock) {
+        int first = leadingBlock ? 1 : 0;
+        Token[] labels = new Token[found.size() + first];
+        for (int l = 0; l < found.size(); l++) labels[l + first] = found.get(l);
+        return labels;
+    }
+
+    int blockCount() {
+        return blocks.length;
+    }
+
+    /**
+     * Traces the allocator's decisions in each block from now on. A block's ring is
+     * made when the block is allocated, and holds no more events than the block can
+     * make, so that files of many small blocks do not keep a full ring for each.
+     *
+     * @param capacity The number of most recent events kept per block.
+     */
+    void trace(int capacity) {
+        traceCapacity = capacity;
+        traces = new AllocatorTrace[blocks.length];
+        renamers = new Renamer[blocks.length];
+    }
+
+    /**
+     * The capacity of the trace of a block: the capacity asked for, or room for as
+     * many events as its operations can make if that is less.
+     */
+    private int traceCapacity(Block block) {
+        long events = (long) AllocatorTrace.EVENTS_PER_OPERATION * Math.max(1, block.size());
+        return (int) Math.min(traceCapacity, events);
+    }
+
+    /**
+     * Allocates each block with the cheapest of several strategies from now on (see
+     * AutoAllocator), instead of the one passed to allocate.
+     *
+     * @param budgetMillis How long each block may wait for the strategies.
+     */
+    void choose(long budgetMillis) {
+        chooseMillis = budgetMillis;
+    }
+
+    /**
+     * Writes the traced decisions of every block, in block order, as JSON lines.
+     */
+    void dumpTrace(StringBuilder out) {
+        for (int b = 0; b < blocks.length; b++) {
+            if (renamers[b] != null && traces[b] != null) traces[b].dump(out, blockName(b), renamers[b], symbols);
+        }
+    }
+
+    /**
+     * Renames each block with a PressureProfile attached and writes the profiles,
+     * in block order, as JSON lines. The blocks are profiled as they are allocated,
+     * with the loads and stores of their homes.
+     */
+    void profile(StringBuilder out) {
+        for (int b = 0; b < blocks.length; b++) {
+            Renamer renamer = new Renamer(blocks[b].copy());
+            PressureProfile profile = new PressureProfile(renamer.block(), symbols);
+            renamer.renameSR2LiveRange(profile);
+            out.append(profile.toJson(blockName(b))).append('\n');
+        }
+    }
+
+    /**
+     * Renames and allocates each block in the scratch memory of the thread that
+     * does it (see CompilationContext) from now on, rather than in new arrays.
+     * Blocks that are traced, or allocated by several strategies, still get their own.
+     */
+    void reuseMemory() {
+        reuseMemory = true;
+    }
+
+    /**
+     * Reorders each block to lower its register pressure before allocating it from
+     * now on (see Scheduler).
+     */
+    void reorder() {
+        reorderReports = new String[blocks.length];
+    }
+
+    private String blockName(int b) {
+        return labels[b] == null ? name : name + ":" + labels[b].lexeme;
+    }
+
+    /**
+     * Fills in liveOut with a backward pass over the blocks.
+     */
+    private void computeLiveOut(int registers) {
+        int count = blocks.length;
+        exposed = new boolean[count][registers];
+        defined = new boolean[count][registers];
+        for (int b = 0; b < count; b++) {
+            Block block = blocks[b];
+            for (int i = 0; i < block.size(); i++) {
+                Category op = block.opcode(i);
+                for (int slot = 0; slot < 2; slot++) {
+                    if (Block.isUse(op, slot) && !defined[b][block.SR(i, slot)]) exposed[b][block.SR(i, slot)] = true;
+                }
+                if (Block.isDef(op, 2)) defined[b][block.SR(i, 2)] = true;
+            }
+        }
+
+        // Registers defined in some block before each boundary.
+        boolean[][] reaching = new boolean[count][registers];
+        for (int b = 0; b < count; b++) {
+            for (int r = 0; r < registers; r++) {
+                reaching[b][r] = defined[b][r] || (b > 0 && reaching[b - 1][r]);
+            }
+        }
+
+        boolean[] live = new boolean[registers];
+        for (int b = count - 1; b >= 0; b--) {
+            liveOut[b] = new boolean[registers];
+            for (int r = 0; r < registers; r++) liveOut[b][r] = live[r] && reaching[b][r];
+            // Live into block b: used before defined, or live out and passing through.
+            for (int r = 0; r < registers; r++) live[r] = exposed[b][r] || (live[r] && !defined[b][r]);
+        }
+    }
+
+    /**
+     * @return Block b with the loads of its live-in values in front and the stores
+     *         of its live-out values behind.
+     */
+    private Block withHomes(int b, int registers) {
+        Block block = blocks[b];
+        // A register no operation names, for the home addresses.
+        int address = registers;
+        int line = labels[b] != null ? labels[b].line : block.size() > 0 ? block.line(0) : 0;
+        Block result = block.emptyLike(block.size() + 8);
+        if (b > 0) {
+            for (int r = 0; r < registers; r++) {
+                if (!liveOut[b - 1][r] || !exposed[b][r]) continue;
+                loadI(result, home(r), address, line);
+                int l = result.add(LOAD, line);
+                result.setSR(l, 0, address);
+                result.setSR(l, 2, r);
+            }
+        }
+        for (int i = 0; i < block.size(); i++) result.append(block, i);
+        int last = block.size() > 0 ? block.line(block.size() - 1) : line;
+        for (int r = 0; r < registers; r++) {
+            if (!liveOut[b][r] || !defined[b][r]) continue;
+            loadI(result, home(r), address, last);
+            int s = result.add(STORE, last);
+            result.setSR(s, 0, r);
+            result.setSR(s, 1, address);
+        }
+        return result;
+    }
+
+    private static void loadI(Block block, int constant, int register, int line) {
+        int l = block.add(LOADI, line);
+        block.setSR(l, 0, constant);
+        block.setSR(l, 2, register);
+    }
+
+    /**
+     * @return The home word of a source register.
+     */
+    static int home(int register) {
+        return HOME_BASE + 4 * register;
+    }
+
+    /**
+     * Renames and allocates every block, in parallel when there are several.
+     *
+     * @param k The number of physical registers available.
+     * @param linearScan Whether to allocate with linear scan.
+     * @param optimize Whether to run the peephole optimizer on the allocated code.
+     * @return The allocated code of the whole file, with its labels.
+     */
+    String allocate(int k, boolean linearScan, boolean optimize) {
+        String[] code = new String[blocks.length];
+        IntStream range = IntStream.range(0, blocks.length);
+        (blocks.length > 1 ? range.parallel() : range).forEach(b -> code[b] = allocate(b, k, linearScan, optimize));
+        StringBuilder out = new StringBuilder();
+        for (int b = 0; b < blocks.length; b++) {
+            if (labels[b] != null) out.append(labels[b].lexeme).append(":\n");
+            out.append(code[b]);
+        }
+        return out.toString();
+    }
+
+    private String allocate(int b, int k, boolean linearScan, boolean optimize) {
+        CompilationContext context = reuseMemory && traces == null && chooseMillis < 0
+                ? CompilationContext.acquire() : CompilationContext.NONE;
+        try {
+            return allocate(b, k, linearScan, optimize, context);
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * @param context Where the renamer and allocator keep their tables.
+     */
+    private String allocate(int b, int k, boolean linearScan, boolean optimize, CompilationContext context) {
+        long start = System.nanoTime();
+        stats[b] = new Stats(blockName(b));
+        Block block = blocks[b];
+        if (reorderReports != null) {
+            CompilerEvents.ScheduleEvent scheduling = CompilerEvents.beginSchedule();
+            Scheduler scheduler = new Scheduler(block, k, linearScan);
+            block = scheduler.schedule();
+            CompilerEvents.commitSchedule(scheduling, name, blockName(b), block.size(), block != blocks[b]);
+            scheduler.addStats(stats[b]);
+            reorderReports[b] = scheduler.report(blockName(b));
+        }
+        Block allocated;
+        String allocator = linearScan ? "linear-scan" : "bottom-up";
+        CompilerEvents.AllocateEvent allocation;
+        if (chooseMillis >= 0) {
+            allocation = CompilerEvents.beginAllocate();
+            AutoAllocator auto = new AutoAllocator(block, k, chooseMillis, spillBase);
+            allocated = auto.allocate(stats[b], traces != null ? traceCapacity(block) : 0);
+            allocator = auto.strategy();
+            if (traces != null) {
+                traces[b] = auto.trace();
+                renamers[b] = auto.renamer();
+            }
+        } else {
+            CompilerEvents.RenameEvent renaming = CompilerEvents.beginRename();
+            Renamer renamer = new Renamer(block, context);
+            renamer.renameSR2LiveRange();
+            CompilerEvents.commitRename(renaming, name, blockName(b), block.size(), renamer.maxLive());
+            AllocatorTrace trace = null;
+            if (traces != null) {
+                trace = traces[b] = new AllocatorTrace(traceCapacity(block));
+                renamers[b] = renamer;
+            }
+            allocation = CompilerEvents.beginAllocate();
+            allocated = Main.allocateBlock(renamer, k, linearScan, spillBase, stats[b], trace);
+        }
+        CompilerEvents.commitAllocate(allocation, name, blockName(b), allocator, k, block.size(), allocated.size());
+        CompilerEvents.commitSpill(name, blockName(b), stats[b]);
+        stats[b].put("allocationMillis", (System.nanoTime() - start) / 1e6);
+        if (optimize) {
+            Peephole peephole = new Peephole(allocated, k);
+            allocated = peephole.optimize();
+            reports[b] = peephole.report(blockName(b));
+        }
+        CompilerEvents.EmitEvent emit = CompilerEvents.beginEmit();
+        String code = allocated.toString(Block.PR_COLUMN);
+        CompilerEvents.commitEmit(emit, name, blockName(b), allocated.size(), code.length());
+        return code;
+    }
+
+    /**
+     * @return The stats of block b, after allocate.
+     */
+    Stats stats(int b) {
+        return stats[b];
+    }
+
+    /**
+     * @return What reordering did to block b, after allocate, if blocks are reordered.
+     */
+    String reorderReport(int b) {
+        return reorderReports[b];
+    }
+
+    /**
+     * @return The peephole optimizer's report for block b, after allocate with optimize.
+     */
+    String report(int b) {
+        return reports[b];
+    }
+}
@@ -1,71 +1,182 @@
 package src.lab1;
 
-import java.util.*;
-import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
-
-
+/**
+ * Renames the source registers of a block into live ranges. The block is walked
+ * once, back to front; every live range gets its own virtual register (VR) and
+ * every operand learns the index of its value's next use (NU). The same pass
+ * counts the values live at each operation, giving MaxLive.
+ *
+ * @author Tyra Cole
+ *
+ */
 public class Renamer {
-    private static final int INVALID = -1;
-    private static int VRName = 0;
+    private static final int INVALID = Block.INVALID;
+    private final Block block;
+    private final CompilationContext context;
+    private int VRName = 0;
+    // Source registers the maps cover; the context's arrays may be longer.
+    private final int registers;
     private int[] SRToVR;
     private int[] PrevUse;
+    private int[] VRToSR;
+    private int maxLive = 0;
 
-    public Renamer(int maxSourceRegisterNumber, List<Operations> block) {
-        SRToVR = new int[maxSourceRegisterNumber + 1];
-        PrevUse = new int[maxSourceRegisterNumber + 1];
+    /**
+     * Constructs a renamer for the operations recognized by a parser.
+     *
+     * @param parser A parser that has already parsed its input without errors.
+     */
+    public Renamer(Parser parser) {
+        this(Block.from(parser.operations()));
+    }
 
-        for (int i = 0; i <= maxSourceRegisterNumber; i++) {
-            SRToVR[i] = INVALID;
-            PrevUse[i] = Integer.MAX_VALUE;
-        }
+    /**
+     * Constructs a renamer for a block.
+     *
+     * @param block The block whose SR column is filled in.
+     */
+    Renamer(Block block) {
+        this(block, CompilationContext.NONE);
+    }
+
+    /**
+     * Constructs a renamer whose maps, and the tables of the allocator that
+     * follows it, come from a context.
+     */
+    Renamer(Block block, CompilationContext context) {
+        this.block = block;
+        this.context = context;
+        registers = block.maxSR() + 1;
+        SRToVR = context.ints(registers, INVALID);
+        PrevUse = context.ints(registers, Block.INFINITY);
+        VRToSR = context.ints(16, 0);
+    }
 
-        int index = block.size();
+    /**
+     * Fills in the VR and NU columns of the block. A definition ends a live range
+     * (walking backwards) and a use of a register with no open live range starts one.
+     */
+    void renameSR2LiveRange() {
+        renameSR2LiveRange(null);
+    }
 
-        OperandVisitor operandVisitor = new OperandVisitor();
+    /**
+     * Renames the block, reporting the pressure at every operation and the extent
+     * of every live range to a profile.
+     *
+     * @param profile The profile to report to, or null.
+     */
+    void renameSR2LiveRange(PressureProfile profile) {
+        int live = 0;
 
         for (int i = block.size() - 1; i >= 0; i--) {
-            Operations op = block.get(i);
-            List<Token> operands = op.accept(operandVisitor);
+            Block.stopIfInterrupted(i);
+            Category op = block.opcode(i);
+            int needed = 0;
 
-            for (Token O : operands) {
-                processOperand(O, index);
+            // Definition first: it kills the live range that its value starts.
+            if (Block.isDef(op, 2)) {
+                int SR = block.SR(i, 2);
+                if (SRToVR[SR] == INVALID) {
+                    SRToVR[SR] = newVR(SR);  // Value is never used.
+                    if (profile != null) profile.rangeEnd(SRToVR[SR], SR, i);
+                } else {
+                    live--;
+                }
+                block.setVR(i, 2, SRToVR[SR]);
+                block.setNU(i, 2, PrevUse[SR]);
+                if (profile != null) profile.rangeStart(SRToVR[SR], i);
+                // The definition needs a register alongside every value live across the operation.
+                needed = live + 1;
+                SRToVR[SR] = INVALID;
+                PrevUse[SR] = Block.INFINITY;
             }
 
-            index--;
+            // Then the uses, which start (or extend) live ranges.
+            for (int slot = 0; slot < 2; slot++) {
+                if (!Block.isUse(op, slot)) continue;
+                int SR = block.SR(i, slot);
+                if (SRToVR[SR] == INVALID) {
+                    SRToVR[SR] = newVR(SR);
+                    if (profile != null) profile.rangeEnd(SRToVR[SR], SR, i);
+                    live++;
+                }
+                block.setVR(i, slot, SRToVR[SR]);
+                block.setNU(i, slot, PrevUse[SR]);
+            }
+            for (int slot = 0; slot < 2; slot++) {
+                if (Block.isUse(op, slot)) PrevUse[block.SR(i, slot)] = i;
+            }
+            needed = Math.max(needed, live);
+            maxLive = Math.max(maxLive, needed);
+            if (profile != null) profile.operation(i, needed);
         }
-    }
 
-    private void processOperand(Token O, int index) {
-        int SR = Integer.parseInt(O.lexeme);  // Assuming lexeme represents the source register.
-        if (SRToVR[SR] == INVALID) {
-            SRToVR[SR] = VRName++;
-            O.VR = SRToVR[SR];
-            O.NU = PrevUse[SR];
-            PrevUse[SR] = Integer.MAX_VALUE;
-            SRToVR[SR] = INVALID;
+        // Whatever is still open was live on entry to the block.
+        if (profile != null) {
+            for (int SR = 0; SR < registers; SR++) {
+                if (SRToVR[SR] != INVALID) profile.rangeStart(SRToVR[SR], INVALID);
+            }
         }
-        PrevUse[SR] = index;
     }
 
-    private class OperandVisitor implements Operations.Visitor<List<Token>> {
-        @Override
-        public List<Token> visitZeroOp(Token op) {
-            return Arrays.asList();  // No operands for ZeroOp
-        }
+    /**
+     * Hands out the next virtual register, remembering which source register it renames.
+     */
+    private int newVR(int SR) {
+        if (VRName == VRToSR.length) VRToSR = context.grow(VRToSR, VRName * 2);
+        VRToSR[VRName] = SR;
+        return VRName++;
+    }
 
-        @Override
-        public List<Token> visitOneOp(Token op, Token first) {
-            return Arrays.asList(first);
-        }
+    /**
+     * Prints the block with its registers renamed to live ranges.
+     */
+    void printRenamedBlock() {
+        block.print(Block.VR_COLUMN);
+    }
 
-        @Override
-        public List<Token> visitTwoOp(Token op, Token first, Token second) {
-            return Arrays.asList(first, second);
-        }
+    Block block() {
+        return block;
+    }
 
-        @Override
-        public List<Token> visitThreeOp(Token op, Token first, Token second, Token third) {
-            return Arrays.asList(first, second, third);
-        }
+    CompilationContext context() {
+        return context;
+    }
+
+    /**
+     * @return The number of virtual registers handed out.
+     */
+    int VRCount() {
+        return VRName;
+    }
+
+    /**
+     * @return The largest number of registers needed at any point of the block.
+     */
+    int maxLive() {
+        return maxLive;
+    }
+
+    /**
+     * @return The source register renamed by a virtual register.
+     */
+    int SROf(int VR) {
+        return VRToSR[VR];
+    }
+
+    /**
+     * After renaming, returns the virtual register of a value that is live on entry
+     * to the block, or INVALID if the source register is not live there.
+     */
+    int liveInVR(int SR) {
+        return SR < registers ? SRToVR[SR] : INVALID;
+    }
+
+    /**
+     * After renaming, returns the index of the first use of a value live on entry.
+     */
+    int liveInNU(int SR) {
+        return SR < registers ? PrevUse[SR] : Block.INFINITY;
     }
-}
\ No newline at end of file
+}
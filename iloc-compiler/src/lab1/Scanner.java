@@ -1,9 +1,7 @@
 package src.lab1;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static src.lab1.Category.*; // allows me to refer to static variables without prefixing them with Category
 
@@ -11,28 +9,20 @@ import static src.lab1.Category.*; // allows me to refer to static variables wit
  * Representation of a scanner. The Scanner class is responsible for taking a 
  * source string and turning it into a list of Tokens, which are <Category, lexeme> 
  * pairings representing words of the ILOC language.
+ *
+ * Runs of blanks, comments, and the rest of a line after an error are skipped
+ * without going through charToToken for each character. The next newline is found
+ * with String.indexOf, which HotSpot compiles to a vectorized search, and a run of
+ * blanks with a loop over the source that the JIT unrolls.
+ *
+ * The tokens can also be pulled one at a time with nextToken, which keeps only
+ * the last token, in fields, and makes no Token unless asked to (see FusedParser).
  * 
  * @author Tyra Cole
  * 
  */
 public class Scanner {
 
-    // A static map to hold the keyword to Category associations.
-    private static final Map<String, Category> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("load", LOAD);
-        keywords.put("loadI", LOADI);
-        keywords.put("store", STORE);
-        keywords.put("add", ADD);
-        keywords.put("sub", SUB);
-        keywords.put("mult", MULT);
-        keywords.put("lshift", LSHIFT);
-        keywords.put("rshift", RSHIFT);
-        keywords.put("output", OUTPUT);
-        keywords.put("nop", NOP);
-    }
-
     // The string of the source file that is being read.
     private final String source;
     // List to hold the tokens as they are scanned.
@@ -42,24 +32,125 @@ public class Scanner {
     private int curr = 0;
     // Line counter.
     private int line = 1;
+    // Where errors are reported.
+    private final Diagnostics diagnostics;
+    // Registers and constants seen so far.
+    private final SymbolTable symbols;
+    // The last token scanned: its category, line and value, and for a label where
+    // its name is in the source. A Token is made from these only when needed.
+    private Category category;
+    private int tokenLine;
+    private int value;
+    private int nameStart;
+    private int nameEnd;
+    // Whether charToToken found a token, and the number of tokens found so far.
+    private boolean found = false;
+    private int count = 0;
 
     /**
      * Constructor that initializes the Scanner with source string, source.  
      */ 
-    Scanner(String source) {
+    Scanner(String source, Diagnostics diagnostics) {
+        this(source, 1, diagnostics, new SymbolTable());
+    }
+
+    /**
+     * Constructor for a source string that starts part way through a file, at line firstLine,
+     * whose registers must keep the ids they were given in an earlier symbol table.
+     */
+    Scanner(String source, int firstLine, Diagnostics diagnostics, SymbolTable symbols) {
         this.source = source;
+        this.line = firstLine;
+        this.diagnostics = diagnostics;
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return The symbol table holding the registers and constants scanned.
+     */
+    SymbolTable symbols() {
+        return symbols;
     }
 
     /**
      * Creates a new Token and adds it to the list of Tokens created, tokens.
      */
     List<Token> addTokens() {
+        while (nextToken() != EOF) tokens.add(token());
+        tokens.add(new Token(EOF, "", line));
+        return tokens;
+    }
+
+    /**
+     * Scans the next token, reporting and skipping whatever is not one on the way.
+     *
+     * @return Its category, or EOF at the end of the source, for ever after.
+     */
+    Category nextToken() {
         while (!isAtEnd()) {
             start = curr;
             charToToken();
+            if (found) {
+                found = false;
+                count++;
+                return category;
+            }
+        }
+        category = EOF;
+        tokenLine = line;
+        return EOF;
+    }
+
+    /**
+     * @return The category of the last token scanned.
+     */
+    Category category() {
+        return category;
+    }
+
+    /**
+     * @return The line of the last token scanned.
+     */
+    int tokenLine() {
+        return tokenLine;
+    }
+
+    /**
+     * @return The value of the last token scanned: a NUMBER's value, or a REGISTER's id.
+     */
+    int value() {
+        return value;
+    }
+
+    /**
+     * @return The number of tokens scanned before the last one, its index in addTokens.
+     */
+    int tokenIndex() {
+        return category == EOF ? count : count - 1;
+    }
+
+    /**
+     * @return The last token scanned, as a Token.
+     */
+    Token token() {
+        return new Token(category, lexeme(), tokenLine, value);
+    }
+
+    /**
+     * @return The lexeme of the last token scanned. Registers and constants share
+     *         the symbol table's lexeme, so no substring of the source is kept but
+     *         for a label's name.
+     */
+    private String lexeme() {
+        switch (category) {
+            case COMMA: return ",";
+            case ARROW: return "=>";
+            case REGISTER: return symbols.registerName(value);
+            case NUMBER: return symbols.constantLexeme(value);
+            case LABEL: return source.substring(nameStart, nameEnd);
+            case EOF: return "";
+            default: return Block.keyword(category);
         }
-        tokens.add(new Token(EOF, "", line));
-        return tokens;
     }
 
     /**
@@ -68,11 +159,8 @@ public class Scanner {
      * prevent multiple error messages for a single erroneous line.
      */
     private void skipToNextLine() {
-        // Keep advancing characters while we're not at the end of the file
-        // and haven't yet encountered a newline character.
-        while (!isAtEnd() && peek() != '\n') {
-            advance();
-        }
+        // Jump to the next newline character, or the end of the file.
+        curr = nextNewline(curr);
         
         // If we're not at the end of the file, then we're currently positioned
         // on a newline character. Move past it and increment the line counter.
@@ -83,6 +171,25 @@ public class Scanner {
     }
 
 
+    /**
+     * @return The index of the first newline character at or after from, or the
+     *         length of the source if there is none.
+     */
+    private int nextNewline(int from) {
+        int i = source.indexOf('\n', from);
+        return i < 0 ? source.length() : i;
+    }
+
+    /**
+     * @return The index of the first character at or after from that is not a space
+     *         or a tab, or the length of the source if there is none.
+     */
+    private int nextNonBlank(int from) {
+        int i = from;
+        while (i < source.length() && (source.charAt(i) == ' ' || source.charAt(i) == '\t')) i++;
+        return i;
+    }
+
     /**
      * Transforms the current character from the source code into its corresponding token.
      * It recognizes various characters and sequences to classify them into token categories.
@@ -95,13 +202,13 @@ public class Scanner {
         switch (c) {
             case ',':
                 // If the character is a comma, add a COMMA token
-                createToken(COMMA);
+                createToken(COMMA, 0);
                 break;
             case '=':
                 // If the character is an '=', check if the next character is '>'
-                if (isMatch('>')) createToken(ARROW);  // If so, it's an ARROW token
+                if (isMatch('>')) createToken(ARROW, 0);  // If so, it's an ARROW token
                 else {
-                    Main.error(line, "Expected > but found " + peek());  // Otherwise, raise an error expecting '>'
+                    error(Diagnostics.Code.EXPECTED_GREATER);  // Otherwise, raise an error expecting '>'
                     skipToNextLine();
                 }
                 break;
@@ -109,17 +216,20 @@ public class Scanner {
                 // If the character is a '/', check if the next character is also '/'
                 if (isMatch('/')) {
                     // If it's a comment starting with '//', skip till the end of the line
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    curr = nextNewline(curr);
                 } else {
                     // If it's not a recognized sequence, raise an error
-                    Main.error(line, "Unexpected character");
+                    error(Diagnostics.Code.UNEXPECTED_CHARACTER);
                     skipToNextLine();
                 }
                 break;
             case ' ':
-            case '\r':
             case '\t':
-                // Ignore whitespace characters (spaces, carriage returns, tabs)
+                // Ignore whitespace characters, along with the rest of their run
+                curr = nextNonBlank(curr);
+                break;
+            case '\r':
+                // Ignore carriage returns
                 break;
             case '\n':
                 // For newline characters, increment the line count
@@ -135,7 +245,7 @@ public class Scanner {
                     identifier();
                 } else {
                     // If it's neither a digit nor an alphabetical character, raise an error
-                    Main.error(line, "Unexpected character");
+                    error(Diagnostics.Code.UNEXPECTED_CHARACTER);
                     skipToNextLine();
                 }
                 break;
@@ -159,18 +269,89 @@ public class Scanner {
         // If so, advance the current pointer to the next character
         // Continue this until you reach the end of alphanumeric characters in this sequence
         while (isAlphaNumeric(peek())) advance();
-        // Make a string of all the alphanumeric characters found above
-        String text = source.substring(start, curr);
-        // Find the Category of the word. Default is REGISTER.
-        Category category = keywords.getOrDefault(text, REGISTER);
-        // REGISTER tokens must begin with character 'r'. Return ERROR if not.
-        if (category == REGISTER && text.charAt(0) != 'r') {
-            Main.error(line, "Register expected");
+        // A word followed by ':' is a label, which starts a block.
+        if (isMatch(':')) {
+            nameStart = start;
+            nameEnd = curr - 1;
+            createToken(LABEL, 0);
+            return;
+        }
+        // A register is an 'r' followed only by digits. It is converted and interned here.
+        if (source.charAt(start) == 'r' && curr - start > 1 && isDigits(start + 1)) {
+            int number = toInt(start + 1);
+            if (number < 0) return;
+            createToken(REGISTER, symbols.registerId(number));
+            return;
+        }
+        // Anything else must be a keyword.
+        Category category = keyword();
+        if (category == null) {
+            error(Diagnostics.Code.REGISTER_EXPECTED);
             skipToNextLine();
             return;
         }
         // Create a Token for word of Category type found.
-        createToken(category);
+        createToken(category, 0);
+    }
+
+    /**
+     * Looks up the word from start up to curr among the opcodes. A switch on the
+     * first character leaves at most three keywords to compare, and nothing has to
+     * be built when the class is loaded.
+     *
+     * @return The opcode, or null if the word is not a keyword.
+     */
+    private Category keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return isWord("add") ? ADD : null;
+            case 'l':
+                if (isWord("load")) return LOAD;
+                if (isWord("loadI")) return LOADI;
+                return isWord("lshift") ? LSHIFT : null;
+            case 'm': return isWord("mult") ? MULT : null;
+            case 'n': return isWord("nop") ? NOP : null;
+            case 'o': return isWord("output") ? OUTPUT : null;
+            case 'r': return isWord("rshift") ? RSHIFT : null;
+            case 's':
+                if (isWord("store")) return STORE;
+                return isWord("sub") ? SUB : null;
+            default: return null;
+        }
+    }
+
+    /**
+     * Checks that the word from start up to curr is exactly word.
+     */
+    private boolean isWord(String word) {
+        return curr - start == word.length() && source.startsWith(word, start);
+    }
+
+    /**
+     * Checks that every character from index from up to curr is a digit.
+     */
+    private boolean isDigits(int from) {
+        for (int i = from; i < curr; i++) {
+            if (!isDigit(source.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts the digits from index from up to curr to an int. If the value does not
+     * fit, reports an error, skips the line and returns -1.
+     */
+    private int toInt(int from) {
+        int value = 0;
+        for (int i = from; i < curr; i++) {
+            int digit = source.charAt(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                error(Diagnostics.Code.NUMBER_OUT_OF_RANGE);
+                skipToNextLine();
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
     }
 
     /**
@@ -185,7 +366,9 @@ public class Scanner {
      */
     private void number() {
         while (isDigit(peek())) advance();
-        createToken(NUMBER);
+        int value = toInt(start);
+        if (value < 0) return;
+        createToken(NUMBER, value);
     }
 
     /**
@@ -214,11 +397,20 @@ public class Scanner {
     }
 
     /**
-     * Creates a new token and adds it to a list of Token objects,
+     * Reports an error on the current line, noting the character that was found.
+     */
+    private void error(Diagnostics.Code code) {
+        diagnostics.scanError(code, line, count, peek());
+    }
+
+    /**
+     * Records the token just recognized as the last token scanned.
      */
-    private void createToken(Category category) {
-        String text = source.substring(start, curr);
-        tokens.add(new Token(category, text, line));
+    private void createToken(Category category, int value) {
+        this.category = category;
+        this.tokenLine = line;
+        this.value = value;
+        found = true;
     }
 
     /**
@@ -0,0 +1,259 @@
+package src.lab1;
+
+/**
+ * Reorders a block before renaming so that fewer values are live at once. The
+ * operations form a dependence graph:
+ * <ul>
+ *   <li>register edges, on source registers: a use follows the definition it reads
+ *       (RAW), a definition follows the earlier reads of its register (WAR) and
+ *       its earlier definition (WAW);</li>
+ *   <li>memory edges, from MemoryDependence.</li>
+ * </ul>
+ * An operation is deferrable if it defines a value that is used and reads only
+ * values defined by deferrable operations: a loadI, a load from a loadI'd address,
+ * arithmetic on such values. Moving one later shortens the live range it starts
+ * and lengthens none, since its whole cone of inputs moves with it. So the other
+ * operations keep their source order, and each deferrable one is placed only when
+ * something that depends on it is about to be, depth first: first the memory and
+ * ordering predecessors, then the producers of the operands, the one needing more
+ * registers first (its Sethi-Ullman label), and among equals the one on the longer
+ * latency path to the end of the block. A constant or address is thus made just
+ * before it is needed rather than where the source happened to put it.
+ *
+ * The reordered block is kept only if it allocates with less spill code at the
+ * given k, or as much spill code and a lower MaxLive, so the pass never makes a
+ * block worse.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Scheduler {
+    private static final int NONE = Block.INVALID;
+
+    private final Block block;
+    private final int k;
+    private final boolean linearScan;
+
+    // Predecessors in compressed rows, in the order they are visited.
+    private int[] predStart;
+    private int[] preds;
+    // Whether each operation is placed only when something needs it.
+    private boolean[] deferrable;
+
+    private int maxLiveBefore;
+    private int maxLiveAfter;
+    private int spillsBefore;
+    private int spillsAfter;
+    private boolean reordered;
+    // Spill operations of the last block measured.
+    private int spills;
+
+    /**
+     * @param block The block to reorder, in its source registers; it is not changed.
+     * @param k The number of physical registers the spill code is measured at.
+     * @param linearScan Whether the spill code is measured with linear scan.
+     */
+    Scheduler(Block block, int k, boolean linearScan) {
+        this.block = block;
+        this.k = k;
+        this.linearScan = linearScan;
+    }
+
+    /**
+     * @return The reordered block, or the block itself if reordering does not help.
+     */
+    Block schedule() {
+        int n = block.size();
+        buildGraph();
+        int[] order = order();
+        Block scheduled = block.emptyLike(n);
+        for (int o = 0; o < n; o++) scheduled.append(block, order[o]);
+
+        maxLiveBefore = measure(block);
+        spillsBefore = spills;
+        maxLiveAfter = measure(scheduled);
+        spillsAfter = spills;
+        reordered = spillsAfter < spillsBefore || (spillsAfter == spillsBefore && maxLiveAfter < maxLiveBefore);
+        return reordered ? scheduled : block;
+    }
+
+    /**
+     * Renames and allocates a copy of a block.
+     *
+     * @return Its MaxLive; the spill operations inserted are left in spills.
+     */
+    private int measure(Block candidate) {
+        Renamer renamer = new Renamer(candidate.copy());
+        renamer.renameSR2LiveRange();
+        Block allocated = Main.allocateBlock(renamer, k, linearScan, new Stats(), null);
+        spills = allocated.size() - candidate.size();
+        return renamer.maxLive();
+    }
+
+    /**
+     * Builds the predecessor lists. Each operation lists its memory and ordering
+     * predecessors first, then the producers of its operands, heaviest first.
+     */
+    private void buildGraph() {
+        int n = block.size();
+        int registers = block.maxSR() + 1;
+        int[] lastDef = new int[registers];
+        // Reads of each register since its last definition, linked through nextRead.
+        int[] readHead = new int[registers];
+        int[] nextRead = new int[n * 2];
+        for (int r = 0; r < registers; r++) {
+            lastDef[r] = NONE;
+            readHead[r] = NONE;
+        }
+        MemoryDependence memory = new MemoryDependence(block, Block.SR_COLUMN);
+
+        deferrable = new boolean[n];
+        boolean[] used = new boolean[n];
+        int[] label = new int[n];
+        int[] path = new int[n];
+        // Number of distinct operand producers, which end each operation's row.
+        int[] operands = new int[n];
+        IntList other = new IntList();
+        IntList list = new IntList(n * 2);
+        predStart = new int[n + 1];
+        int[] producer = new int[2];
+
+        for (int i = 0; i < n; i++) {
+            predStart[i] = list.size();
+            Category op = block.opcode(i);
+            // Ordering edges: memory, then anti and output dependences.
+            other.clear();
+            for (int e = memory.firstEdge(i); e < memory.endEdge(i); e++) other.add(memory.edgeFrom(e));
+            if (Block.isDef(op, 2)) {
+                int d = block.SR(i, 2);
+                if (lastDef[d] != NONE) other.add(lastDef[d]);
+                for (int r = readHead[d]; r != NONE; r = nextRead[r]) other.add(r >> 1);
+            }
+            for (int o = 0; o < other.size(); o++) list.add(other.get(o));
+
+            // Operand producers, the higher label first.
+            int count = 0;
+            for (int slot = 0; slot < 2; slot++) {
+                if (!Block.isUse(op, slot)) continue;
+                int p = lastDef[block.SR(i, slot)];
+                if (p != NONE && (count == 0 || producer[0] != p)) producer[count++] = p;
+            }
+            if (count == 2 && label[producer[1]] > label[producer[0]]) {
+                int t = producer[0];
+                producer[0] = producer[1];
+                producer[1] = t;
+            }
+            for (int c = 0; c < count; c++) list.add(producer[c]);
+            // Deferrable so far if every operand comes from a deferrable operation.
+            boolean inputs = true;
+            for (int slot = 0; slot < 2; slot++) {
+                if (!Block.isUse(op, slot)) continue;
+                int p = lastDef[block.SR(i, slot)];
+                if (p == NONE || !deferrable[p]) inputs = false;
+                if (p != NONE) used[p] = true;
+            }
+            deferrable[i] = Block.isDef(op, 2) && inputs;
+            operands[i] = count;
+            label[i] = count == 0 ? 1 : count == 1 ? Math.max(label[producer[0]], 1)
+                    : Math.max(label[producer[0]], label[producer[1]] + 1);
+
+            // Record the reads and the definition for later operations.
+            for (int slot = 0; slot < 2; slot++) {
+                if (!Block.isUse(op, slot)) continue;
+                int r = block.SR(i, slot);
+                nextRead[i * 2 + slot] = readHead[r];
+                readHead[r] = i * 2 + slot;
+            }
+            if (Block.isDef(op, 2)) {
+                int d = block.SR(i, 2);
+                lastDef[d] = i;
+                readHead[d] = NONE;
+            }
+        }
+        predStart[n] = list.size();
+        preds = list.toArray();
+        for (int i = 0; i < n; i++) deferrable[i] &= used[i];
+
+        // Producers of equal label go in order of their latency path, longest first.
+        latencyPaths(path);
+        for (int i = 0; i < n; i++) {
+            int a = predStart[i + 1] - 2;
+            if (operands[i] == 2 && label[preds[a]] == label[preds[a + 1]] && path[preds[a + 1]] > path[preds[a]]) {
+                int t = preds[a];
+                preds[a] = preds[a + 1];
+                preds[a + 1] = t;
+            }
+        }
+    }
+
+    /**
+     * Fills in, for each operation, the latency of the longest path from it to the
+     * end of the block.
+     */
+    private void latencyPaths(int[] path) {
+        int n = block.size();
+        for (int i = n - 1; i >= 0; i--) {
+            path[i] += Latency.of(block.opcode(i));
+            for (int e = predStart[i]; e < predStart[i + 1]; e++) {
+                int p = preds[e];
+                path[p] = Math.max(path[p], path[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The operations in their new order. Every predecessor of an operation
+     *         that is not deferrable comes before it in the source and is placed
+     *         already, so the walk only ever pulls in deferrable operations.
+     */
+    private int[] order() {
+        int n = block.size();
+        int[] order = new int[n];
+        int placed = 0;
+        boolean[] done = new boolean[n];
+        // Depth-first stack of operations and the next predecessor each will visit.
+        int[] stack = new int[n];
+        int[] cursor = new int[n];
+        for (int root = 0; root < n; root++) {
+            if (deferrable[root]) continue;
+            int top = 0;
+            stack[0] = root;
+            cursor[0] = predStart[root];
+            while (top >= 0) {
+                int i = stack[top];
+                if (cursor[top] < predStart[i + 1]) {
+                    int p = preds[cursor[top]++];
+                    if (!done[p]) {
+                        done[p] = true;
+                        stack[++top] = p;
+                        cursor[top] = predStart[p];
+                    }
+                } else {
+                    done[i] = true;
+                    order[placed++] = i;
+                    top--;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Adds MaxLive and spill operations before and after to a stats record.
+     */
+    void addStats(Stats stats) {
+        stats.put("maxLiveBefore", maxLiveBefore);
+        stats.put("maxLiveAfter", reordered ? maxLiveAfter : maxLiveBefore);
+        stats.put("spillOperationsBefore", spillsBefore);
+        stats.put("spillOperationsAfter", reordered ? spillsAfter : spillsBefore);
+    }
+
+    /**
+     * @return A line describing what reordering did to the block.
+     */
+    String report(String name) {
+        return name + ": reordering took MaxLive " + maxLiveBefore + " -> " + maxLiveAfter
+                + ", spill operations at k=" + k + " " + spillsBefore + " -> " + spillsAfter
+                + (reordered ? "" : " (kept source order)");
+    }
+}
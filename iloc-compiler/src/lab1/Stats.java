@@ -0,0 +1,109 @@
+package src.lab1;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A record of statistics about one block, printed as a line of JSON. Fields keep
+ * the order in which they were put, and numbers are written the same way in
+ * every locale, with a '.' before the decimals.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class Stats {
+    private final StringBuilder fields = new StringBuilder();
+    // The integer fields by key, for readers other than the JSON line.
+    private final Map<String, Long> numbers = new HashMap<>();
+
+    /**
+     * @param block The name of the block, usually its file.
+     */
+    Stats(String block) {
+        put("block", block);
+    }
+
+    /**
+     * Constructs a record without a block, to be added to another with putAll.
+     */
+    Stats() {
+    }
+
+    Stats put(String key, long value) {
+        key(key).append(value);
+        numbers.put(key, value);
+        return this;
+    }
+
+    Stats put(String key, double value) {
+        appendDecimal(key(key), value);
+        return this;
+    }
+
+    /**
+     * Appends value rounded to three decimals, or null if it is NaN or infinite,
+     * which JSON cannot hold. Every run records a time, so this avoids Formatter,
+     * which would load the locale data of Locale.ROOT at startup.
+     */
+    private static void appendDecimal(StringBuilder out, double value) {
+        if (!Double.isFinite(value)) {
+            out.append("null");
+            return;
+        }
+        if (Math.abs(value) >= 1e15) {
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+            return;
+        }
+        long thousandths = Math.round(Math.abs(value) * 1000);
+        if (value < 0 && thousandths != 0) out.append('-');
+        long fraction = thousandths % 1000;
+        out.append(thousandths / 1000).append('.');
+        if (fraction < 100) out.append('0');
+        if (fraction < 10) out.append('0');
+        out.append(fraction);
+    }
+
+    Stats put(String key, String value) {
+        key(key).append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        return this;
+    }
+
+    /**
+     * Puts another record as a nested JSON object. Its integers are not kept for get.
+     */
+    Stats put(String key, Stats value) {
+        key(key).append(value.toJson());
+        return this;
+    }
+
+    /**
+     * Appends every field of another record.
+     */
+    Stats putAll(Stats other) {
+        numbers.putAll(other.numbers);
+        if (other.fields.length() == 0) return this;
+        if (fields.length() > 0) fields.append(',');
+        fields.append(other.fields);
+        return this;
+    }
+
+    /**
+     * @return The last integer put under a key, or 0 if there is none.
+     */
+    long get(String key) {
+        return numbers.getOrDefault(key, 0L);
+    }
+
+    private StringBuilder key(String key) {
+        if (fields.length() > 0) fields.append(',');
+        return fields.append('"').append(key).append("\":");
+    }
+
+    /**
+     * @return The record as one line of JSON.
+     */
+    String toJson() {
+        return "{" + fields + "}";
+    }
+}
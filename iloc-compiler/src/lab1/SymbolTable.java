@@ -0,0 +1,139 @@
+package src.lab1;
+
+import java.util.Arrays;
+
+/**
+ * The scanner's symbol table. Registers are interned to dense ids, handed out in
+ * order of first appearance, so that later phases can size their maps by the
+ * number of registers actually used rather than by the largest register number.
+ * Every distinct register and constant also gets one canonical lexeme, created
+ * the first time it is seen, which all of its tokens share.
+ *
+ * Both tables are open-addressing hash tables keyed by the int value.
+ *
+ * @author Tyra Cole
+ *
+ */
+final class SymbolTable {
+    private static final int EMPTY = -1;
+
+    // Register number -> dense id.
+    private int[] registerKeys = newKeys(64);
+    private int[] registerIds = new int[64];
+    private int registerCount = 0;
+    // Dense id -> register number and name.
+    private int[] registerNumbers = new int[64];
+    private String[] registerNames = new String[64];
+
+    // Constant -> canonical lexeme.
+    private int[] constantKeys = newKeys(64);
+    private String[] constantLexemes = new String[64];
+    private int constantCount = 0;
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    /**
+     * Spreads the bits of a key so that consecutive numbers do not cluster.
+     */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the dense id of a register, interning it if it is new.
+     *
+     * @param number The register number, as in r17.
+     * @return The register's id.
+     */
+    int registerId(int number) {
+        int mask = registerKeys.length - 1;
+        int s = slot(number, mask);
+        while (registerKeys[s] != EMPTY) {
+            if (registerKeys[s] == number) return registerIds[s];
+            s = (s + 1) & mask;
+        }
+        int id = registerCount++;
+        registerKeys[s] = number;
+        registerIds[s] = id;
+        if (id == registerNumbers.length) {
+            registerNumbers = Arrays.copyOf(registerNumbers, id * 2);
+            registerNames = Arrays.copyOf(registerNames, id * 2);
+        }
+        registerNumbers[id] = number;
+        if (registerCount * 2 > registerKeys.length) rehashRegisters();
+        return id;
+    }
+
+    private void rehashRegisters() {
+        int[] keys = newKeys(registerKeys.length * 2);
+        int[] ids = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int id = 0; id < registerCount; id++) {
+            int s = slot(registerNumbers[id], mask);
+            while (keys[s] != EMPTY) s = (s + 1) & mask;
+            keys[s] = registerNumbers[id];
+            ids[s] = id;
+        }
+        registerKeys = keys;
+        registerIds = ids;
+    }
+
+    /**
+     * @return The number of the register with this id.
+     */
+    int registerNumber(int id) {
+        return registerNumbers[id];
+    }
+
+    /**
+     * @return The canonical lexeme of the register with this id, such as "r17".
+     */
+    String registerName(int id) {
+        if (registerNames[id] == null) registerNames[id] = "r" + registerNumbers[id];
+        return registerNames[id];
+    }
+
+    /**
+     * @return The number of distinct registers seen.
+     */
+    int registerCount() {
+        return registerCount;
+    }
+
+    /**
+     * Returns the canonical lexeme of a constant, creating it if the constant is new.
+     */
+    String constantLexeme(int value) {
+        int mask = constantKeys.length - 1;
+        int s = slot(value, mask);
+        while (constantKeys[s] != EMPTY) {
+            if (constantKeys[s] == value) return constantLexemes[s];
+            s = (s + 1) & mask;
+        }
+        String lexeme = Integer.toString(value);
+        constantKeys[s] = value;
+        constantLexemes[s] = lexeme;
+        if (++constantCount * 2 > constantKeys.length) rehashConstants();
+        return lexeme;
+    }
+
+    private void rehashConstants() {
+        int[] keys = newKeys(constantKeys.length * 2);
+        String[] lexemes = new String[keys.length];
+        int mask = keys.length - 1;
+        for (int s = 0; s < constantKeys.length; s++) {
+            if (constantKeys[s] == EMPTY) continue;
+            int t = slot(constantKeys[s], mask);
+            while (keys[t] != EMPTY) t = (t + 1) & mask;
+            keys[t] = constantKeys[s];
+            lexemes[t] = constantLexemes[s];
+        }
+        constantKeys = keys;
+        constantLexemes = lexemes;
+    }
+}
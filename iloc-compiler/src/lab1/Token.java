@@ -20,6 +20,9 @@ public class Token {
     // The line number in the source where this token was found
     final int line;
 
+    // The value of a NUMBER, or the symbol table id of a REGISTER
+    final int value;
+
     /**
      * Constructor for the Token class.
      * 
@@ -28,9 +31,22 @@ public class Token {
      * @param line     The line number where this token was found
      */
     Token(Category category, String lexeme, int line) {
+        this(category, lexeme, line, 0);
+    }
+
+    /**
+     * Constructor for tokens that carry a value, converted once by the scanner.
+     * 
+     * @param category The category or type of the token
+     * @param lexeme   The actual word or text (lexeme) of the token
+     * @param line     The line number where this token was found
+     * @param value    The value of a NUMBER, or the symbol table id of a REGISTER
+     */
+    Token(Category category, String lexeme, int line, int value) {
         this.category = category;
         this.lexeme = lexeme;
         this.line = line;
+        this.value = value;
     }
 
     /**